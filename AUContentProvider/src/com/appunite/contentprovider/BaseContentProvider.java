@@ -16,41 +16,113 @@
 
 package com.appunite.contentprovider;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import com.appunite.contentprovider.ContractFullDesc.ConnectionDesc;
+import com.appunite.contentprovider.ContractFullDesc.JoinPlan;
+import com.appunite.contentprovider.ContractFullDesc.OnDeleteAction;
 import com.appunite.contentprovider.ContractFullDesc.SelectionVars;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.SQLException;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Binder;
 import android.os.Build;
-import android.util.Log;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.text.TextUtils;
 
 public abstract class BaseContentProvider extends ContentProvider implements
 		QueryInterface {
 
-	private static final int MAX_OPERATIONS_PER_YIELD_POINT = 500;
-	private static final int MIN_OPERATIONS_PER_YIELD_POINT = 250;
-	private static final int FORCE_OPERATIONS_PER_YIELD_POINT = 400;
-	private static final long SLEEP_AFTER_YIELD_DELAY = 4000;
+	private static final int DEFAULT_STATEMENT_CACHE_SIZE = 25;
+	private static final int DEFAULT_QUERY_CACHE_SIZE = 64;
+	private static final int DEFAULT_MAX_ROW_NOTIFICATIONS = 20;
+	private static final int INDEX_ADVISOR_MAX_SHAPES = 512;
+	// android.os.Trace rejects longer section names
+	private static final int MAX_TRACE_SECTION_LENGTH = 127;
 	private static final String TAG = "BaseContentProvider";
+
+	/**
+	 * {@link #call(String, String, Bundle)} method that returns
+	 * {@link ProviderMetrics#toBundle()} with text dump under {@link #KEY_DUMP}
+	 */
+	public static final String METHOD_GET_METRICS = "getMetrics";
+	/**
+	 * {@link #call(String, String, Bundle)} method that resets
+	 * {@link ProviderMetrics} and {@link WriteProfiler}
+	 */
+	public static final String METHOD_RESET_METRICS = "resetMetrics";
+	/**
+	 * {@link #call(String, String, Bundle)} method that returns
+	 * {@link WriteProfiler#toBundle()} with text dump under {@link #KEY_DUMP}
+	 */
+	public static final String METHOD_GET_WRITE_PROFILE = "getWriteProfile";
+	public static final String KEY_DUMP = "dump";
+	/**
+	 * {@link #call(String, String, Bundle)} method that turns trace sections
+	 * on ("true") or off ("false"), see {@link #setTracingEnabled(boolean)}
+	 */
+	public static final String METHOD_SET_TRACING = "setTracing";
+	/**
+	 * {@link #call(String, String, Bundle)} method that returns statements
+	 * kept by {@link SqlTraceSink} as text under {@link #KEY_DUMP}
+	 */
+	public static final String METHOD_GET_SQL_TRACE = "getSqlTrace";
 	private static final boolean DEBUG = BuildConfig.DEBUG;
 
 	private SQLiteOpenHelper mDatabase;
 	private SQLiteDatabase mDb;
+	private StatementCache mStatementCache;
+	private QueryCache mQueryCache;
+	private YieldPolicy mYieldPolicy;
+	private IndexAdvisor mIndexAdvisor;
+	private ProviderMetrics mMetrics;
+	private WriteProfiler mWriteProfiler;
+	private volatile Boolean mSupportsUpsertReturning = null;
+	private volatile boolean mTracingEnabled = false;
+	private volatile SqlTraceSink mSqlTraceSink;
+	// start of outermost transaction (or of its part after last yield)
+	private final ThreadLocal<long[]> mTransactionStartNanos = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+	private final ThreadLocal<GuidPrefetch> mGuidPrefetch = new ThreadLocal<GuidPrefetch>();
+	private final ThreadLocal<NotificationCollector> mNotificationCollector = new ThreadLocal<NotificationCollector>() {
+		@Override
+		protected NotificationCollector initialValue() {
+			return new NotificationCollector(getMaxRowNotifications());
+		}
+	};
 
 	public BaseContentProvider() {
 		super();
@@ -63,17 +135,617 @@ public abstract class BaseContentProvider extends ContentProvider implements
 	@Override
 	public boolean onCreate() {
 		mDatabase = createSQLiteOpenHelper(getContext());
+		if (isWriteAheadLoggingRequested() && Build.VERSION.SDK_INT >= 16) {
+			setWriteAheadLoggingEnabled(mDatabase);
+		}
+		mStatementCache = new StatementCache(getStatementCacheSize());
+		mQueryCache = new QueryCache(getQueryCacheSize());
+		mYieldPolicy = getYieldPolicy();
+		mSqlTraceSink = createSqlTraceSink();
+		if (isMetricsEnabled()) {
+			mMetrics = new ProviderMetrics(getFullDesc());
+		}
+		if (isWriteProfilerEnabled()) {
+			mWriteProfiler = new WriteProfiler();
+		}
+		if (isIndexAdvisorEnabled()) {
+			mIndexAdvisor = new IndexAdvisor(getFullDesc(),
+					INDEX_ADVISOR_MAX_SHAPES);
+		}
+		return true;
+	}
+
+	/**
+	 * Override and return true if every distinct query should be checked by
+	 * EXPLAIN QUERY PLAN and queries whose where or order scans whole table or
+	 * sorts without index should be reported, see {@link #getIndexAdvisor()}.
+	 * Every shape is explained once on background thread but it still costs,
+	 * so do not enable it in production for all users.
+	 */
+	protected boolean isIndexAdvisorEnabled() {
+		return false;
+	}
+
+	/**
+	 * Override and return true if {@link ProviderMetrics} should be
+	 * collected, i.e. in debug builds. Recording does not allocate and costs a
+	 * few atomic increments per operation, but rows of every query are
+	 * counted, so whole result of query is read before it is returned.
+	 */
+	protected boolean isMetricsEnabled() {
+		return false;
+	}
+
+	/**
+	 * @return metrics or null if they are disabled
+	 */
+	public ProviderMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Override and return true to measure write path with
+	 * {@link WriteProfiler}: transaction lock wait and hold times, yields and
+	 * time of every trigger. It calls {@link System#nanoTime()} around every
+	 * trigger call.
+	 */
+	protected boolean isWriteProfilerEnabled() {
+		return false;
+	}
+
+	/**
+	 * @return write profiler or null if it is not enabled
+	 */
+	public WriteProfiler getWriteProfiler() {
+		return mWriteProfiler;
+	}
+
+	private void recordMetrics(SelectionVars selectionVars, int operation,
+			long startNanos, int rows) {
+		if (mMetrics != null) {
+			mMetrics.record(selectionVars, operation, startNanos, rows);
+		}
+	}
+
+	private void recordNotifications(int count) {
+		if (mMetrics != null && count > 0) {
+			mMetrics.recordNotifications(count);
+		}
+	}
+
+	/**
+	 * Diagnostic methods expose queries and timings of other clients, so only
+	 * own process and callers holding write permission may use them
+	 *
+	 * @throws SecurityException
+	 *             if caller is not allowed, also when provider has no write
+	 *             permission
+	 */
+	private void enforceDiagnosticsCaller() {
+		if (Binder.getCallingUid() == Process.myUid()) {
+			return;
+		}
+		String permission = getWritePermission();
+		if (permission == null) {
+			throw new SecurityException(
+					"Provider diagnostics are available only to own process");
+		}
+		getContext().enforceCallingOrSelfPermission(permission,
+				"Provider diagnostics need write permission");
+	}
+
+	/**
+	 * Supports {@link #METHOD_GET_METRICS}, {@link #METHOD_RESET_METRICS},
+	 * {@link #METHOD_GET_WRITE_PROFILE}, {@link #METHOD_SET_TRACING} and
+	 * {@link #METHOD_GET_SQL_TRACE}. These methods are available only to own
+	 * process and callers holding write permission of provider, other methods
+	 * are passed to super unchanged, so subclasses can handle them.
+	 */
+	@Override
+	public Bundle call(String method, String arg, Bundle extras) {
+		if (METHOD_GET_METRICS.equals(method)) {
+			enforceDiagnosticsCaller();
+			if (mMetrics == null) {
+				return null;
+			}
+			Bundle bundle = mMetrics.toBundle();
+			StringWriter dump = new StringWriter();
+			mMetrics.dump(new PrintWriter(dump));
+			bundle.putString(KEY_DUMP, dump.toString());
+			return bundle;
+		}
+		if (METHOD_RESET_METRICS.equals(method)) {
+			enforceDiagnosticsCaller();
+			if (mMetrics != null) {
+				mMetrics.reset();
+			}
+			if (mWriteProfiler != null) {
+				mWriteProfiler.reset();
+			}
+			return null;
+		}
+		if (METHOD_GET_WRITE_PROFILE.equals(method)) {
+			enforceDiagnosticsCaller();
+			if (mWriteProfiler == null) {
+				return null;
+			}
+			Bundle bundle = mWriteProfiler.toBundle();
+			StringWriter dump = new StringWriter();
+			mWriteProfiler.dump(new PrintWriter(dump));
+			bundle.putString(KEY_DUMP, dump.toString());
+			return bundle;
+		}
+		if (METHOD_SET_TRACING.equals(method)) {
+			enforceDiagnosticsCaller();
+			setTracingEnabled(Boolean.parseBoolean(arg));
+			return null;
+		}
+		if (METHOD_GET_SQL_TRACE.equals(method)) {
+			enforceDiagnosticsCaller();
+			SqlTraceSink sqlTraceSink = mSqlTraceSink;
+			if (sqlTraceSink == null) {
+				return null;
+			}
+			StringWriter dump = new StringWriter();
+			sqlTraceSink.dump(new PrintWriter(dump));
+			Bundle bundle = new Bundle();
+			bundle.putString(KEY_DUMP, dump.toString());
+			return bundle;
+		}
+		return super.call(method, arg, extras);
+	}
+
+	@Override
+	public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+		if (mMetrics != null) {
+			mMetrics.dump(writer);
+		}
+		if (mWriteProfiler != null) {
+			mWriteProfiler.dump(writer);
+		}
+		writer.println(mStatementCache);
+		SqlTraceSink sqlTraceSink = mSqlTraceSink;
+		if (sqlTraceSink != null) {
+			sqlTraceSink.dump(writer);
+		}
+	}
+
+	/**
+	 * Override to trace executed sql statements, i.e. return
+	 * {@link RingBufferSqlTraceSink} (optionally wrapped by
+	 * {@link SamplingSqlTraceSink}) to be able to dump last statements from
+	 * release build. By default statements are logged in debug builds.
+	 * 
+	 * @return sink or null if statements should not be traced
+	 */
+	protected SqlTraceSink createSqlTraceSink() {
+		return DEBUG ? new LogcatSqlTraceSink(TAG) : null;
+	}
+
+	/**
+	 * Replace sink at runtime, null turns tracing off
+	 */
+	public void setSqlTraceSink(SqlTraceSink sqlTraceSink) {
+		mSqlTraceSink = sqlTraceSink;
+	}
+
+	public SqlTraceSink getSqlTraceSink() {
+		return mSqlTraceSink;
+	}
+
+	/**
+	 * Turn on {@link Trace} sections around stages of query, operations of
+	 * applyBatch, yields, triggers and change notifications, so they are
+	 * visible in systrace or perfetto. Section names contain table names.
+	 * Sections are never added on api lower than 18.
+	 */
+	public void setTracingEnabled(boolean enabled) {
+		mTracingEnabled = enabled && Build.VERSION.SDK_INT >= 18;
+	}
+
+	public boolean isTracingEnabled() {
+		return mTracingEnabled;
+	}
+
+	/**
+	 * Section name is built only if tracing is enabled
+	 * 
+	 * @return true if section was started and have to be finished by
+	 *         {@link #endSection(boolean)}
+	 */
+	private boolean beginSection(String name) {
+		if (!mTracingEnabled) {
+			return false;
+		}
+		beginTraceSection(name);
+		return true;
+	}
+
+	private boolean beginSection(String name, String table) {
+		if (!mTracingEnabled) {
+			return false;
+		}
+		beginTraceSection(name + " " + table);
+		return true;
+	}
+
+	private boolean beginSection(String name, Uri uri) {
+		if (!mTracingEnabled) {
+			return false;
+		}
+		beginTraceSection(name + " " + uri.getPath());
+		return true;
+	}
+
+	private boolean beginSection(String name, SelectionVars selectionVars,
+			Object trigger) {
+		if (!mTracingEnabled) {
+			return false;
+		}
+		beginTraceSection(name + " " + selectionVars.getTable() + " "
+				+ trigger.getClass().getSimpleName());
 		return true;
 	}
 
+	@TargetApi(18)
+	private static void beginTraceSection(String name) {
+		if (name.length() > MAX_TRACE_SECTION_LENGTH) {
+			name = name.substring(0, MAX_TRACE_SECTION_LENGTH);
+		}
+		Trace.beginSection(name);
+	}
+
+	@TargetApi(18)
+	private static void endSection(boolean began) {
+		if (began) {
+			Trace.endSection();
+		}
+	}
+
+	/**
+	 * Override if query of uri should return {@link PagedCursor} that reads
+	 * rows in pages instead of copying all of them at once, i.e. for very big
+	 * tables. Sort order of such queries has to be usable by keyset
+	 * {@link Pagination}. Queries with pagination parameters always return
+	 * normal cursor.
+	 * 
+	 * @return options of paged cursor or null for normal cursor
+	 */
+	protected PagedCursor.Options getPagedCursorOptions(Uri uri) {
+		return null;
+	}
+
+	/**
+	 * @return index advisor or null if it is not enabled
+	 */
+	public IndexAdvisor getIndexAdvisor() {
+		return mIndexAdvisor;
+	}
+
+	/**
+	 * Override if you want to change when long transactions yield, i.e. to
+	 * {@link TimeYieldPolicy} or {@link ContentionYieldPolicy}
+	 */
+	protected YieldPolicy getYieldPolicy() {
+		return new OperationCountYieldPolicy();
+	}
+
+	/**
+	 * Override and return true if {@link #applyBatch(ArrayList)} should commit
+	 * operations done so far instead of failing when transaction was not
+	 * committed for {@link YieldPolicy#getMaxOperationsPerYieldPoint()}
+	 * operations.
+	 *
+	 * Batch is not atomic then, but batches of any size can be applied. Batch
+	 * applied inside other transaction is never chunked.
+	 */
+	protected boolean isAutoChunkingEnabled() {
+		return false;
+	}
+
+	/**
+	 * Override if you want to change how many generated sql queries of
+	 * {@link #query(Uri, String[], String, String[], String)} are kept
+	 */
+	protected int getQueryCacheSize() {
+		return DEFAULT_QUERY_CACHE_SIZE;
+	}
+
+	/**
+	 * Override if you want to change how many compiled insert/update/delete
+	 * statements are kept. Use {@link #getStatementCache()} hit and miss
+	 * counters to size it.
+	 */
+	protected int getStatementCacheSize() {
+		return DEFAULT_STATEMENT_CACHE_SIZE;
+	}
+
+	public StatementCache getStatementCache() {
+		return mStatementCache;
+	}
+
+	/**
+	 * Override if you want to change how many rows of one table changed in
+	 * transaction are notified by own uri, above this number only table uri
+	 * is notified
+	 */
+	protected int getMaxRowNotifications() {
+		return DEFAULT_MAX_ROW_NOTIFICATIONS;
+	}
+
+	/**
+	 * Override and return true if you want to use write-ahead logging.
+	 *
+	 * In WAL mode {@link SQLiteDatabase} keeps writes on the primary
+	 * connection while {@link #query(Uri, String[], String, String[], String)}
+	 * from other threads is served by its pool of read connections, so UI
+	 * queries are not blocked by a long {@link #applyBatch(ArrayList)}. The
+	 * pool is used as it is, its size is set by the platform. Readers see only
+	 * committed data: a snapshot from before the transaction started or from
+	 * its last yield point. Change notifications are sent after commit, so
+	 * every re-query after notification sees the new data.
+	 */
+	protected boolean isWriteAheadLoggingRequested() {
+		return false;
+	}
+
+	/**
+	 * @return true if database is really opened in write-ahead logging mode
+	 *         (i.e. it is not supported for in-memory databases), it does not
+	 *         check what readers see
+	 */
+	public boolean isWriteAheadLoggingActive() {
+		return getDb().isWriteAheadLoggingEnabled();
+	}
+
+	@TargetApi(16)
+	private static void setWriteAheadLoggingEnabled(SQLiteOpenHelper helper) {
+		helper.setWriteAheadLoggingEnabled(true);
+	}
+
 	private SQLiteDatabase getDb() {
 		if (mDb != null) {
 			return mDb;
 		}
-		mDb = mDatabase.getWritableDatabase();
+		SQLiteDatabase db = mDatabase.getWritableDatabase();
+		if (isWriteAheadLoggingRequested() && Build.VERSION.SDK_INT < 16
+				&& !db.isWriteAheadLoggingEnabled()) {
+			db.enableWriteAheadLogging();
+		}
+		mDb = db;
 		return mDb;
 	}
 
+	/**
+	 * Begin transaction and start collecting change notifications, every call
+	 * have to be finished with {@link #endTransaction(SQLiteDatabase, boolean)}
+	 */
+	private void beginTransaction(SQLiteDatabase db) {
+		if (mWriteProfiler != null && !db.inTransaction()) {
+			beginProfiledTransaction(db);
+		} else {
+			db.beginTransaction();
+		}
+		mNotificationCollector.get().begin();
+	}
+
+	private void beginProfiledTransaction(SQLiteDatabase db) {
+		long startNanos = System.nanoTime();
+		db.beginTransaction();
+		long nowNanos = System.nanoTime();
+		mWriteProfiler.recordTransactionWait(nowNanos - startNanos);
+		mTransactionStartNanos.get()[0] = nowNanos;
+	}
+
+	/**
+	 * Record how long outermost transaction held database lock
+	 */
+	private void recordTransactionHold(long endNanos) {
+		mWriteProfiler.recordTransactionHold(endNanos
+				- mTransactionStartNanos.get()[0]);
+	}
+
+	/**
+	 * End transaction and send collected notifications if transaction was
+	 * committed
+	 */
+	private void endTransaction(SQLiteDatabase db, boolean successful) {
+		boolean committed = false;
+		try {
+			db.endTransaction();
+			if (mWriteProfiler != null && !db.inTransaction()) {
+				recordTransactionHold(System.nanoTime());
+			}
+			committed = successful;
+		} finally {
+			boolean traced = beginSection("notifyChange collected");
+			try {
+				recordNotifications(mNotificationCollector.get().end(
+						committed ? getContext().getContentResolver() : null));
+			} finally {
+				endSection(traced);
+			}
+		}
+	}
+
+	/**
+	 * Start {@link SyncSession} in transaction bound to current thread, it have
+	 * to be finished by {@link SyncSession#end()}
+	 */
+	public SyncSession beginSyncSession() {
+		SQLiteDatabase db = getDb();
+		// session started in transaction of caller can not yield it
+		boolean canYield = !db.inTransaction();
+		beginTransaction(db);
+		return new SyncSession(this, db, mYieldPolicy, canYield);
+	}
+
+	void endSyncSession(SQLiteDatabase db, boolean successful) {
+		if (successful) {
+			db.setTransactionSuccessful();
+		}
+		endTransaction(db, successful);
+	}
+
+	/**
+	 * Compute all aggregate fields added by
+	 * {@link ContractFullDesc.Builder#addAggregateField} again, i.e. to repair
+	 * them after rows were changed with triggers disabled
+	 */
+	public void rebuildAggregates() {
+		SQLiteDatabase db = getDb();
+		beginTransaction(db);
+		boolean successful = false;
+		try {
+			for (String table : getFullDesc().rebuildAggregates(db)) {
+				notifyChange(table);
+			}
+			db.setTransactionSuccessful();
+			successful = true;
+		} finally {
+			endTransaction(db, successful);
+		}
+	}
+
+	private void notifyChange(String table) {
+		notifyChange(table, null);
+	}
+
+	private void notifyRowChange(String table, long id) {
+		notifyChange(table, Long.valueOf(id));
+	}
+
+	/**
+	 * @param id
+	 *            id of changed row or null if changed rows are not known
+	 */
+	private void notifyChange(String table, Long id) {
+		Uri tableUri = getFullDesc().getTableUri(table);
+		Uri rowUri = id == null ? null : ContentUris.withAppendedId(tableUri,
+				id);
+		if (mNotificationCollector.get().add(tableUri, rowUri)) {
+			return;
+		}
+		Uri notificationUri = rowUri == null ? tableUri : rowUri;
+		boolean traced = beginSection("notifyChange", table);
+		try {
+			getContext().getContentResolver().notifyChange(notificationUri,
+					null);
+		} finally {
+			endSection(traced);
+		}
+		recordNotifications(1);
+	}
+
+	/*
+	 * Every trigger is called by one of methods below, so it gets own trace
+	 * section and is measured by write profiler
+	 */
+
+	private Uri onInsert(OnInsertTrigger trigger, Uri uri,
+			SelectionVars selectionVars, ContentValues values) {
+		WriteProfiler profiler = mWriteProfiler;
+		long startNanos = profiler == null ? 0 : System.nanoTime();
+		boolean traced = beginSection("onInsert", selectionVars, trigger);
+		try {
+			return trigger.onInsert(this, uri, selectionVars, values);
+		} finally {
+			endSection(traced);
+			if (profiler != null) {
+				profiler.recordTrigger(WriteProfiler.ON_INSERT, trigger,
+						selectionVars, System.nanoTime() - startNanos);
+			}
+		}
+	}
+
+	private void onAfterInsert(OnAfterInsertTrigger trigger, Uri uri,
+			SelectionVars selectionVars, long id, ContentValues values) {
+		WriteProfiler profiler = mWriteProfiler;
+		long startNanos = profiler == null ? 0 : System.nanoTime();
+		boolean traced = beginSection("onAfterInsert", selectionVars, trigger);
+		try {
+			trigger.onAfterInsert(this, uri, selectionVars, id, values);
+		} finally {
+			endSection(traced);
+			if (profiler != null) {
+				profiler.recordTrigger(WriteProfiler.ON_AFTER_INSERT, trigger,
+						selectionVars, System.nanoTime() - startNanos);
+			}
+		}
+	}
+
+	private void onUpdate(OnUpdateTrigger trigger, Uri uri,
+			SelectionVars selectionVars, ContentValues values,
+			String selection, String[] selectionArgs) {
+		WriteProfiler profiler = mWriteProfiler;
+		long startNanos = profiler == null ? 0 : System.nanoTime();
+		boolean traced = beginSection("onUpdate", selectionVars, trigger);
+		try {
+			trigger.onUpdate(this, uri, selectionVars, values, selection,
+					selectionArgs);
+		} finally {
+			endSection(traced);
+			if (profiler != null) {
+				profiler.recordTrigger(WriteProfiler.ON_UPDATE, trigger,
+						selectionVars, System.nanoTime() - startNanos);
+			}
+		}
+	}
+
+	private void onAfterUpdate(OnAfterUpdateTrigger trigger, Uri uri,
+			SelectionVars selectionVars, ContentValues values,
+			String selection, String[] selectionArgs) {
+		WriteProfiler profiler = mWriteProfiler;
+		long startNanos = profiler == null ? 0 : System.nanoTime();
+		boolean traced = beginSection("onAfterUpdate", selectionVars, trigger);
+		try {
+			trigger.onAfterUpdate(this, uri, selectionVars, values, selection,
+					selectionArgs);
+		} finally {
+			endSection(traced);
+			if (profiler != null) {
+				profiler.recordTrigger(WriteProfiler.ON_AFTER_UPDATE, trigger,
+						selectionVars, System.nanoTime() - startNanos);
+			}
+		}
+	}
+
+	private void onDelete(OnDeleteTrigger trigger, Uri uri,
+			SelectionVars selectionVars, String selection,
+			String[] selectionArgs) {
+		WriteProfiler profiler = mWriteProfiler;
+		long startNanos = profiler == null ? 0 : System.nanoTime();
+		boolean traced = beginSection("onDelete", selectionVars, trigger);
+		try {
+			trigger.onDelete(this, uri, selectionVars, selection,
+					selectionArgs);
+		} finally {
+			endSection(traced);
+			if (profiler != null) {
+				profiler.recordTrigger(WriteProfiler.ON_DELETE, trigger,
+						selectionVars, System.nanoTime() - startNanos);
+			}
+		}
+	}
+
+	private void onAfterDelete(OnAfterDeleteTrigger trigger, Uri uri,
+			SelectionVars selectionVars, String selection,
+			String[] selectionArgs) {
+		WriteProfiler profiler = mWriteProfiler;
+		long startNanos = profiler == null ? 0 : System.nanoTime();
+		boolean traced = beginSection("onAfterDelete", selectionVars, trigger);
+		try {
+			trigger.onAfterDelete(this, uri, selectionVars, selection,
+					selectionArgs);
+		} finally {
+			endSection(traced);
+			if (profiler != null) {
+				profiler.recordTrigger(WriteProfiler.ON_AFTER_DELETE, trigger,
+						selectionVars, System.nanoTime() - startNanos);
+			}
+		}
+	}
+
 	@Override
 	public String getType(Uri uri) {
 		return getFullDesc().getTypeURI(uri);
@@ -83,43 +755,216 @@ public abstract class BaseContentProvider extends ContentProvider implements
 	public ContentProviderResult[] applyBatch(
 			ArrayList<ContentProviderOperation> operations)
 			throws OperationApplicationException {
+		long startNanos = System.nanoTime();
+		YieldPolicy yieldPolicy = mYieldPolicy;
+		int maxOperations = yieldPolicy.getMaxOperationsPerYieldPoint();
 		int ypCount = 0;
+		// operations since last yield attempt, last yield allowed operation
+		// and last commit
 		int opCount = 0;
+		int yieldPointOpCount = 0;
+		int commitOpCount = 0;
+		long yieldAttemptTime = SystemClock.uptimeMillis();
 		SQLiteDatabase db = getDb();
-		db.beginTransaction();
+		// transaction can be yielded only by its outermost owner
+		boolean canYield = !db.inTransaction();
+		boolean canChunk = isAutoChunkingEnabled() && canYield;
+		beginTransaction(db);
+		boolean successful = false;
+		final int numOperations = operations.size();
+		final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+		// applyBatch can be nested (i.e. called by trigger)
+		GuidPrefetch outerGuidPrefetch = mGuidPrefetch.get();
 		try {
-			final int numOperations = operations.size();
-			final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+			mGuidPrefetch.set(prefetchGuids(db, operations));
 			for (int i = 0; i < numOperations; i++) {
-				if (++opCount >= MAX_OPERATIONS_PER_YIELD_POINT) {
+				final ContentProviderOperation operation = operations.get(i);
+				long now = SystemClock.uptimeMillis();
+				++opCount;
+				++yieldPointOpCount;
+				++commitOpCount;
+				// limit is not checked in transaction of caller, it is
+				// committed by its owner
+				if (canChunk && commitOpCount >= maxOperations) {
+					opCount = 0;
+					yieldPointOpCount = 0;
+					commitOpCount = 0;
+					yieldAttemptTime = now;
+					commitChunk(db);
+					ypCount++;
+				} else if (canYield && !canChunk
+						&& yieldPointOpCount >= maxOperations) {
 					throw new OperationApplicationException(
 							"Too many content provider operations between yield points. "
 									+ "The maximum number of operations per yield point is "
-									+ MAX_OPERATIONS_PER_YIELD_POINT, ypCount);
-				}
-				final ContentProviderOperation operation = operations.get(i);
-				if (opCount > MIN_OPERATIONS_PER_YIELD_POINT
-						&& operation.isYieldAllowed()
-						|| opCount > FORCE_OPERATIONS_PER_YIELD_POINT) {
+									+ maxOperations, ypCount);
+				} else if (canYield
+						&& yieldPolicy.shouldYield(opCount, now
+								- yieldAttemptTime, operation.isYieldAllowed())) {
 					opCount = 0;
-					if (db.yieldIfContendedSafely(SLEEP_AFTER_YIELD_DELAY)) {
-						mDb = null;
+					yieldAttemptTime = now;
+					if (operation.isYieldAllowed()) {
+						yieldPointOpCount = 0;
+					}
+					if (yieldIfContended(db, yieldPolicy)) {
 						db = getDb();
 						ypCount++;
+						yieldPointOpCount = 0;
+						commitOpCount = 0;
 					}
 				}
 
-				results[i] = operation.apply(this, results, i);
+				boolean traced = beginSection("applyBatch", operation.getUri());
+				try {
+					results[i] = operation.apply(this, results, i);
+				} finally {
+					endSection(traced);
+				}
 			}
 			db.setTransactionSuccessful();
-			return results;
+			successful = true;
+		} finally {
+			if (outerGuidPrefetch == null) {
+				mGuidPrefetch.remove();
+			} else {
+				// nested batch could insert or delete prefetched rows
+				outerGuidPrefetch.invalidateAll();
+				mGuidPrefetch.set(outerGuidPrefetch);
+			}
+			endTransaction(db, successful);
+		}
+		recordMetrics(null, ProviderMetrics.APPLY_BATCH, startNanos,
+				numOperations);
+		return results;
+	}
+
+	/**
+	 * Yield transaction if other thread waits for database
+	 * 
+	 * @return true if transaction was committed and started again
+	 */
+	boolean yieldIfContended(SQLiteDatabase db, YieldPolicy yieldPolicy) {
+		WriteProfiler profiler = mWriteProfiler;
+		long startNanos = profiler == null ? 0 : System.nanoTime();
+		boolean yielded;
+		boolean traced = beginSection("yield");
+		try {
+			yielded = db.yieldIfContendedSafely(yieldPolicy
+					.getSleepAfterYieldMillis());
 		} finally {
+			endSection(traced);
+		}
+		if (profiler != null) {
+			long nowNanos = System.nanoTime();
+			profiler.recordYield(nowNanos - startNanos, yielded);
+			if (yielded) {
+				// lock was released when yield started
+				recordTransactionHold(startNanos);
+				mTransactionStartNanos.get()[0] = nowNanos;
+			}
+		}
+		if (!yielded) {
+			return false;
+		}
+		mDb = null;
+		onTransactionCommitted();
+		return true;
+	}
+
+	/**
+	 * Commit operations done so far and continue in new transaction
+	 */
+	private void commitChunk(SQLiteDatabase db) {
+		boolean traced = beginSection("commitChunk");
+		try {
+			db.setTransactionSuccessful();
 			db.endTransaction();
+			if (mWriteProfiler != null) {
+				recordTransactionHold(System.nanoTime());
+				mWriteProfiler.recordChunkCommit();
+				beginProfiledTransaction(db);
+			} else {
+				db.beginTransaction();
+			}
+		} finally {
+			endSection(traced);
+		}
+		onTransactionCommitted();
+	}
+
+	private void onTransactionCommitted() {
+		GuidPrefetch guidPrefetch = mGuidPrefetch.get();
+		if (guidPrefetch != null) {
+			// other writer could change rows while we were waiting
+			guidPrefetch.invalidateAll();
+		}
+		// operations before yield point are already committed
+		boolean traced = beginSection("notifyChange collected");
+		try {
+			recordNotifications(mNotificationCollector.get().flush(
+					getContext().getContentResolver()));
+		} finally {
+			endSection(traced);
 		}
 	}
 
+	/**
+	 * Collect guids of all inserts in batch and look for them in database by
+	 * few queries per table
+	 */
+	@TargetApi(23)
+	private GuidPrefetch prefetchGuids(SQLiteDatabase db,
+			ArrayList<ContentProviderOperation> operations) {
+		GuidPrefetch prefetch = new GuidPrefetch();
+		if (Build.VERSION.SDK_INT < 23) {
+			// there is no way to tell if operation is insert
+			return prefetch;
+		}
+		ContractFullDesc fullDesc = getFullDesc();
+		Map<String, Set<String>> guidsByTable = new HashMap<String, Set<String>>();
+		// back references are not known yet, but they are never guids
+		ContentProviderResult[] fakeResults = null;
+		final int numOperations = operations.size();
+		for (int i = 0; i < numOperations; i++) {
+			ContentProviderOperation operation = operations.get(i);
+			if (!operation.isInsert()) {
+				continue;
+			}
+			ContractDesc contractDesc = fullDesc.getSelectionVarsFromUri(
+					operation.getUri()).getContractDesc();
+			String guidField = contractDesc.getGuidField();
+			if (guidField == null) {
+				continue;
+			}
+			if (fakeResults == null) {
+				fakeResults = new ContentProviderResult[numOperations];
+				Arrays.fill(fakeResults, new ContentProviderResult(0));
+			}
+			ContentValues values = operation.resolveValueBackReferences(
+					fakeResults, i);
+			String guid = values == null ? null : values.getAsString(guidField);
+			if (guid == null) {
+				continue;
+			}
+			String table = contractDesc.getTableName();
+			Set<String> guids = guidsByTable.get(table);
+			if (guids == null) {
+				guids = new HashSet<String>();
+				guidsByTable.put(table, guids);
+			}
+			guids.add(guid);
+		}
+		for (Entry<String, Set<String>> entry : guidsByTable.entrySet()) {
+			ContractDesc contractDesc = fullDesc.getContractDesc(entry.getKey());
+			prefetch.prefetch(db, entry.getKey(), contractDesc.getIdField(),
+					contractDesc.getGuidField(), entry.getValue());
+		}
+		return prefetch;
+	}
+
 	@Override
 	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		long startNanos = System.nanoTime();
 		SelectionVars selectionVars = getFullDesc()
 				.getSelectionVarsFromUri(uri);
 		selection = ContentProviderHelper.joinSelection(selection,
@@ -130,39 +975,284 @@ public abstract class BaseContentProvider extends ContentProvider implements
 		ContractDesc contractDesc = selectionVars.getContractDesc();
 		ArrayList<OnDeleteTrigger> triggers = contractDesc.mOnDeleteTriggers;
 		ArrayList<OnAfterDeleteTrigger> afterTriggers = contractDesc.mOnAfterDeleteTriggers;
+		List<ConnectionDesc> connections = getFullDesc()
+				.getOnDeleteConnections(selectionVars.getTable());
 
 		SQLiteDatabase db = getDb();
 		boolean doLocalTranasaction = !db.inTransaction()
-				&& (triggers.size() > 0 || afterTriggers.size() > 0);
+				&& (triggers.size() > 0 || afterTriggers.size() > 0 || connections
+						.size() > 0);
 		if (doLocalTranasaction) {
-			db.beginTransaction();
+			beginTransaction(db);
 		}
+		boolean successful = false;
+		int result;
 		try {
-			for (OnDeleteTrigger trigger : contractDesc.mOnDeleteTriggers) {
-				trigger.onDelete(this, uri, selectionVars, selection,
-						selectionArgs);
+			result = deleteWithTriggers(uri, selectionVars, selection,
+					selectionArgs);
+			if (doLocalTranasaction) {
+				db.setTransactionSuccessful();
+				successful = true;
 			}
+		} finally {
+			if (doLocalTranasaction) {
+				endTransaction(db, successful);
+			}
+		}
+		recordMetrics(selectionVars, ProviderMetrics.DELETE, startNanos,
+				result);
+		return result;
+	}
 
-			int result = delete(selectionVars.getTable(), selection,
+	private int deleteWithTriggers(Uri uri, SelectionVars selectionVars,
+			String selection, String[] selectionArgs) {
+		ContractDesc contractDesc = selectionVars.getContractDesc();
+		for (OnDeleteTrigger trigger : contractDesc.mOnDeleteTriggers) {
+			onDelete(trigger, uri, selectionVars, selection, selectionArgs);
+		}
+
+		applyOnDeleteActions(selectionVars.getTable(), selection,
+				selectionArgs);
+		int result = delete(selectionVars.getTable(), selection, selectionArgs);
+
+		for (OnAfterDeleteTrigger trigger : contractDesc.mOnAfterDeleteTriggers) {
+			onAfterDelete(trigger, uri, selectionVars, selection,
 					selectionArgs);
+		}
+		return result;
+	}
+
+	/**
+	 * Apply {@link OnDeleteAction} of connections to rows of N tables, one
+	 * statement per connection with rows of 1 table as sub-query
+	 */
+	private void applyOnDeleteActions(String table, String selection,
+			String[] selectionArgs) {
+		ContractFullDesc fullDesc = getFullDesc();
+		for (ConnectionDesc connection : fullDesc.getOnDeleteConnections(table)) {
+			Uri connectedUri = fullDesc.getTableUri(connection.tableN);
+			StringBuilder sb = new StringBuilder();
+			sb.append(connection.fieldN).append(" IN (SELECT ")
+					.append(connection.field1).append(" FROM ").append(table);
+			if (!TextUtils.isEmpty(selection)) {
+				sb.append(" WHERE ").append(selection);
+			}
+			sb.append(")");
+			String connectedSelection = sb.toString();
 
-			for (OnAfterDeleteTrigger trigger : contractDesc.mOnAfterDeleteTriggers) {
-				trigger.onAfterDelete(this, uri, selectionVars, selection,
-						selectionArgs);
+			switch (connection.onDelete) {
+			case CASCADE:
+				deleteWithTriggers(connectedUri,
+						fullDesc.getSelectionVarsFromUri(connectedUri),
+						connectedSelection, selectionArgs);
+				break;
+			case SET_NULL:
+				ContentValues values = new ContentValues();
+				values.putNull(connection.fieldN);
+				updateWithTriggers(connectedUri,
+						fullDesc.getSelectionVarsFromUri(connectedUri), values,
+						connectedSelection, selectionArgs);
+				break;
+			case RESTRICT:
+				if (DatabaseUtils.queryNumEntries(getDb(), connection.tableN,
+						connectedSelection, selectionArgs) > 0) {
+					throw new SQLiteConstraintException(
+							"Could not delete from " + table
+									+ " because of rows in "
+									+ connection.tableN);
+				}
+				break;
+			default:
+				break;
 			}
-			if (doLocalTranasaction) {
-				db.setTransactionSuccessful();
+		}
+	}
+
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] valuesArray) {
+		long startNanos = System.nanoTime();
+		SelectionVars selectionVars = getFullDesc()
+				.getSelectionVarsFromUri(uri);
+
+		String table = selectionVars.getTable();
+		String insertField = selectionVars.getInsertField();
+		String insertValue = selectionVars.getInsertValue();
+
+		ContractDesc contractDesc = selectionVars.getContractDesc();
+		ArrayList<OnInsertTrigger> triggers = contractDesc.mOnInsertTriggers;
+		ArrayList<OnAfterInsertTrigger> afterTriggers = contractDesc.mOnAfterInsertTriggers;
+
+		// one compiled statement for every set of columns, kept until the end
+		Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+		YieldPolicy yieldPolicy = mYieldPolicy;
+		SQLiteDatabase db = getDb();
+		// i.e. called by trigger or applyBatch, outer transaction can not
+		// be yielded here
+		boolean canYield = !db.inTransaction();
+		beginTransaction(db);
+		boolean successful = false;
+		try {
+			int rowCount = 0;
+			long yieldAttemptTime = SystemClock.uptimeMillis();
+			for (ContentValues values : valuesArray) {
+				long now = SystemClock.uptimeMillis();
+				// every row can be a yield point
+				if (canYield
+						&& yieldPolicy.shouldYield(++rowCount, now
+								- yieldAttemptTime, true)) {
+					rowCount = 0;
+					yieldAttemptTime = now;
+					if (yieldIfContended(db, yieldPolicy)) {
+						db = getDb();
+					}
+				}
+
+				if (insertField != null && !values.containsKey(insertField)) {
+					values.put(insertField, insertValue);
+				}
+				Uri newUri = null;
+				for (OnInsertTrigger trigger : triggers) {
+					newUri = onInsert(trigger, uri, selectionVars, values);
+					if (newUri != null) {
+						break;
+					}
+				}
+				if (newUri != null) {
+					continue;
+				}
+
+				long id;
+				if (values.size() == 0) {
+					id = insertOrThrow(table, null, values);
+				} else {
+					String[] columns = getSortedColumns(values);
+					String sql = buildInsertSql(table, columns);
+					SQLiteStatement statement = statements.get(sql);
+					if (statement == null) {
+						statement = mStatementCache.acquire(db, sql);
+						statements.put(sql, statement);
+					}
+					SqlTraceSink sqlTraceSink = mSqlTraceSink;
+					long statementStartNanos = sqlTraceSink == null ? 0
+							: System.nanoTime();
+					bindValues(statement, columns, values, null);
+					id = statement.executeInsert();
+					if (sqlTraceSink != null) {
+						sqlTraceSink.onStatement(sql, values, null,
+								System.nanoTime() - statementStartNanos);
+					}
+					notifyRowChange(table, id);
+				}
+				// bulkInsert can be nested in applyBatch (i.e. called by
+				// trigger) that prefetched guids of its inserts
+				rememberGuid(table, contractDesc.getGuidField(), values, id);
+				if (afterTriggers.size() > 0) {
+					newUri = Uri.withAppendedPath(uri, Long.toString(id));
+					for (OnAfterInsertTrigger trigger : afterTriggers) {
+						onAfterInsert(trigger, newUri, selectionVars, id,
+								values);
+					}
+				}
 			}
-			return result;
+			db.setTransactionSuccessful();
+			successful = true;
 		} finally {
-			if (doLocalTranasaction) {
-				db.endTransaction();
+			for (Entry<String, SQLiteStatement> entry : statements.entrySet()) {
+				mStatementCache.release(entry.getKey(), entry.getValue());
+			}
+			endTransaction(db, successful);
+		}
+		recordMetrics(selectionVars, ProviderMetrics.BULK_INSERT, startNanos,
+				valuesArray.length);
+		return valuesArray.length;
+	}
+
+	private static String[] getSortedColumns(ContentValues values) {
+		Set<String> keySet = values.keySet();
+		String[] columns = keySet.toArray(new String[keySet.size()]);
+		Arrays.sort(columns);
+		return columns;
+	}
+
+	private static String buildInsertSql(String table, String[] columns) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("INSERT INTO ").append(table).append(" (");
+		for (int i = 0; i < columns.length; ++i) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(columns[i]);
+		}
+		sb.append(") VALUES (");
+		for (int i = 0; i < columns.length; ++i) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append("?");
+		}
+		sb.append(")");
+		return sb.toString();
+	}
+
+	private static String buildUpdateSql(String table, String[] columns,
+			String whereClause) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("UPDATE ").append(table).append(" SET ");
+		for (int i = 0; i < columns.length; ++i) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(columns[i]).append("=?");
+		}
+		if (!TextUtils.isEmpty(whereClause)) {
+			sb.append(" WHERE ").append(whereClause);
+		}
+		return sb.toString();
+	}
+
+	private static String buildDeleteSql(String table, String whereClause) {
+		if (TextUtils.isEmpty(whereClause)) {
+			return "DELETE FROM " + table;
+		}
+		return "DELETE FROM " + table + " WHERE " + whereClause;
+	}
+
+	private static void bindValues(SQLiteStatement statement,
+			String[] columns, ContentValues values, String[] whereArgs) {
+		statement.clearBindings();
+		int index = 1;
+		if (columns != null) {
+			for (String column : columns) {
+				bindValue(statement, index++, values.get(column));
+			}
+		}
+		if (whereArgs != null) {
+			for (String arg : whereArgs) {
+				bindValue(statement, index++, arg);
 			}
 		}
 	}
 
+	private static void bindValue(SQLiteStatement statement, int index,
+			Object value) {
+		if (value == null) {
+			statement.bindNull(index);
+		} else if (value instanceof Double || value instanceof Float) {
+			statement.bindDouble(index, ((Number) value).doubleValue());
+		} else if (value instanceof Number) {
+			statement.bindLong(index, ((Number) value).longValue());
+		} else if (value instanceof Boolean) {
+			statement.bindLong(index, (Boolean) value ? 1 : 0);
+		} else if (value instanceof byte[]) {
+			statement.bindBlob(index, (byte[]) value);
+		} else {
+			statement.bindString(index, value.toString());
+		}
+	}
+
 	@Override
 	public Uri insert(Uri uri, ContentValues values) {
+		long startNanos = System.nanoTime();
 		SelectionVars selectionVars = getFullDesc()
 				.getSelectionVarsFromUri(uri);
 
@@ -180,70 +1270,313 @@ public abstract class BaseContentProvider extends ContentProvider implements
 		boolean doLocalTransaction = !db.inTransaction()
 				&& (triggers.size() > 0 || afterTriggers.size() > 0);
 		if (doLocalTransaction) {
-			db.beginTransaction();
+			beginTransaction(db);
 		}
+		boolean successful = false;
+		Uri newUri = null;
 		try {
 			for (OnInsertTrigger trigger : triggers) {
-				Uri newUri = trigger.onInsert(this, uri, selectionVars, values);
+				newUri = onInsert(trigger, uri, selectionVars, values);
 				if (newUri != null) {
-					if (doLocalTransaction) {
-						db.setTransactionSuccessful();
-					}
-					return newUri;
+					break;
 				}
 			}
-			String table = selectionVars.getTable();
-			long id = insertOrThrow(table, null, values);
-			Uri newUri = Uri.withAppendedPath(uri, Long.toString(id));
-			for (OnAfterInsertTrigger trigger : afterTriggers) {
-				trigger.onAfterInsert(this, newUri, selectionVars, id, values);
+			if (newUri == null) {
+				String table = selectionVars.getTable();
+				long id = insertOrThrow(table, null, values);
+				rememberGuid(table, contractDesc.getGuidField(), values, id);
+				newUri = Uri.withAppendedPath(uri, Long.toString(id));
+				for (OnAfterInsertTrigger trigger : afterTriggers) {
+					onAfterInsert(trigger, newUri, selectionVars, id, values);
+				}
 			}
 			if (doLocalTransaction) {
 				db.setTransactionSuccessful();
+				successful = true;
 			}
-			return newUri;
 		} finally {
 			if (doLocalTransaction) {
-				db.endTransaction();
+				endTransaction(db, successful);
 			}
 		}
+		recordMetrics(selectionVars, ProviderMetrics.INSERT, startNanos, 1);
+		return newUri;
 	}
 
-	@Override
-	public Cursor query(Uri uri, String[] projection, String selection,
-						String[] selectionArgs, String sortOrder) {
-		SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+	/**
+	 * Called by {@link GuidOnInsertTrigger}, update row with the same guid or
+	 * return null if row have to be inserted
+	 */
+	Uri insertWithGuid(Uri uri, SelectionVars selectionVars,
+			ContentValues values, String guidField, OnInsertTrigger guidTrigger) {
+		ContractDesc contractDesc = selectionVars.getContractDesc();
+		String table = selectionVars.getTable();
+		String idField = contractDesc.getIdField();
+		String guid = values.getAsString(guidField);
 
-		queryBuilder.setStrict(true);
+		String id;
+		GuidPrefetch prefetch = mGuidPrefetch.get();
+		if (prefetch != null && prefetch.isKnown(table, guid)) {
+			Long prefetchedId = prefetch.getId(table, guid);
+			if (prefetchedId == null) {
+				return null;
+			}
+			id = Long.toString(prefetchedId);
+		} else if (contractDesc.isGuidUpsert()
+				&& canUseNativeUpsert(contractDesc, guidTrigger)) {
+			return upsertWithGuid(uri, selectionVars, values, guidField, guid);
+		} else {
+			String sql = "SELECT " + idField + " FROM " + table + " WHERE "
+					+ guidField + " = ? LIMIT 1";
+			SQLiteStatement statement = mStatementCache.acquire(getDb(), sql);
+			try {
+				bindValue(statement, 1, guid);
+				id = Long.toString(statement.simpleQueryForLong());
+			} catch (SQLiteDoneException e) {
+				return null;
+			} finally {
+				mStatementCache.release(sql, statement);
+			}
+		}
 
-		ContractFullDesc fullDesc = getFullDesc();
-		SelectionVars selectionVars = fullDesc.getSelectionVarsFromUri(uri);
+		String selection = idField + " = ?";
+		String[] selectionArgs = new String[] { id };
+		for (OnUpdateTrigger trigger : contractDesc.mOnUpdateTriggers) {
+			onUpdate(trigger, uri, selectionVars, values, selection,
+					selectionArgs);
+		}
+		update(table, values, selection, selectionArgs);
+		return Uri.withAppendedPath(uri, id);
+	}
 
-		StringBuilder sb = new StringBuilder();
+	/**
+	 * Insert or update row by one statement, only for contracts accepted by
+	 * {@link #canUseNativeUpsert(ContractDesc, OnInsertTrigger)}
+	 */
+	private Uri upsertWithGuid(Uri uri, SelectionVars selectionVars,
+			ContentValues values, String guidField, String guid) {
+		ContractDesc contractDesc = selectionVars.getContractDesc();
 		String table = selectionVars.getTable();
-		sb.append(table);
-		fullDesc.addJoins(table, sb, projection);
-		ProjectionMap projectionMap = fullDesc.getFinalProjectionMap(table);
-		queryBuilder.setProjectionMap(projectionMap);
-		queryBuilder.setTables(sb.toString());
 
-		ContractDesc contractDesc = fullDesc.getContractDesc(table);
-		String groupBy = contractDesc.getIdField();
+		String[] insertColumns = getSortedColumns(values);
+		String[] updateColumns = insertColumns;
+		String sql = buildUpsertSql(table, contractDesc.getIdField(),
+				guidField, insertColumns, updateColumns);
+		SQLiteStatement statement = mStatementCache.acquire(getDb(), sql);
+		SqlTraceSink sqlTraceSink = mSqlTraceSink;
+		long startNanos = sqlTraceSink == null ? 0 : System.nanoTime();
+		long id;
+		try {
+			statement.clearBindings();
+			int index = 1;
+			for (String column : insertColumns) {
+				bindValue(statement, index++, values.get(column));
+			}
+			for (String column : updateColumns) {
+				bindValue(statement, index++, values.get(column));
+			}
+			id = statement.simpleQueryForLong();
+		} finally {
+			mStatementCache.release(sql, statement);
+		}
+		if (sqlTraceSink != null) {
+			sqlTraceSink.onStatement(sql, values, null, System.nanoTime()
+					- startNanos);
+		}
+		notifyRowChange(table, id);
+		rememberGuid(table, guidField, values, id);
+		return Uri.withAppendedPath(uri, Long.toString(id));
+	}
+
+	private void rememberGuid(String table, String guidField,
+			ContentValues values, long id) {
+		GuidPrefetch prefetch = mGuidPrefetch.get();
+		if (prefetch == null || guidField == null) {
+			return;
+		}
+		String guid = values.getAsString(guidField);
+		if (guid != null) {
+			prefetch.put(table, guid, id);
+		}
+	}
+
+	private boolean canUseNativeUpsert(ContractDesc contractDesc,
+			OnInsertTrigger guidTrigger) {
+		if (contractDesc.mIsFts) {
+			return false;
+		}
+		// triggers have to be called before the statement and only for
+		// inserted or only for updated row, but single statement can not
+		// tell which one it will be, so such contracts look for guid first
+		if (contractDesc.mOnUpdateTriggers.size() > 0
+				|| contractDesc.mOnAfterInsertTriggers.size() > 0) {
+			return false;
+		}
+		ArrayList<OnInsertTrigger> insertTriggers = contractDesc.mOnInsertTriggers;
+		if (insertTriggers.indexOf(guidTrigger) != insertTriggers.size() - 1) {
+			return false;
+		}
+		Boolean supportsUpsertReturning = mSupportsUpsertReturning;
+		if (supportsUpsertReturning == null) {
+			String version = DatabaseUtils.stringForQuery(getDb(),
+					"SELECT sqlite_version()", null);
+			// RETURNING clause is available since 3.35.0
+			supportsUpsertReturning = compareVersion(version, 3, 35) >= 0;
+			mSupportsUpsertReturning = supportsUpsertReturning;
+		}
+		return supportsUpsertReturning;
+	}
+
+	private static int compareVersion(String version, int major, int minor) {
+		String[] parts = version.split("\\.");
+		int versionMajor = Integer.parseInt(parts[0]);
+		if (versionMajor != major) {
+			return versionMajor < major ? -1 : 1;
+		}
+		int versionMinor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+		if (versionMinor != minor) {
+			return versionMinor < minor ? -1 : 1;
+		}
+		return 0;
+	}
+
+	private static String buildUpsertSql(String table, String idField,
+			String guidField, String[] insertColumns, String[] updateColumns) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(buildInsertSql(table, insertColumns));
+		sb.append(" ON CONFLICT(").append(guidField).append(") DO UPDATE SET ");
+		for (int i = 0; i < updateColumns.length; ++i) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(updateColumns[i]).append("=?");
+		}
+		sb.append(" RETURNING ").append(idField);
+		return sb.toString();
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection,
+						String[] selectionArgs, String sortOrder) {
+		long startNanos = System.nanoTime();
+		ContractFullDesc fullDesc = getFullDesc();
+		SelectionVars selectionVars;
+		boolean traced = beginSection("query route", uri);
+		try {
+			selectionVars = fullDesc.getSelectionVarsFromUri(uri);
+		} finally {
+			endSection(traced);
+		}
+		String table = selectionVars.getTable();
+		// paged cursor reads pages by queries of the same uri
+		String querySelection = selection;
+		String[] querySelectionArgs = selectionArgs;
+		String querySortOrder = sortOrder;
 
 		selection = ContentProviderHelper.joinSelection(selection,
 				selectionVars.getSelection());
 		selectionArgs = ContentProviderHelper.joinSelectionArgs(selectionArgs,
 				selectionVars.getSelectionArgs());
-		printQueryInDebug(queryBuilder, projection, selection, selectionArgs,
-				groupBy, null, sortOrder);
+		Pagination pagination = Pagination.fromUri(uri,
+				selectionVars.getContractDesc(), sortOrder);
+		selection = ContentProviderHelper.joinSelection(selection,
+				pagination.getSelection());
+		selectionArgs = ContentProviderHelper.joinSelectionArgs(selectionArgs,
+				pagination.getSelectionArgs());
+		sortOrder = pagination.getSortOrder();
+		String limit = pagination.getLimit();
+		// paged cursor adds own pagination
+		PagedCursor.Options pagedCursorOptions = pagination.isPaged() ? null
+				: getPagedCursorOptions(uri);
+
+		Cursor cursor;
+		QueryCache.Key key = new QueryCache.Key(table, projection, selection,
+				sortOrder, limit);
+		String sql = mQueryCache.get(key);
+		SqlTraceSink sqlTraceSink = mSqlTraceSink;
+		long statementStartNanos = sqlTraceSink == null ? 0 : System
+				.nanoTime();
+		if (sql != null) {
+			traced = beginSection("query execute", table);
+			try {
+				if (pagedCursorOptions != null) {
+					cursor = new PagedCursor(this, getDb(), sql,
+							selectionArgs, uri, projection, querySelection,
+							querySelectionArgs, querySortOrder, selectionVars
+									.getContractDesc().getIdField(),
+							pagedCursorOptions);
+				} else {
+					cursor = getDb().rawQuery(sql, selectionArgs);
+				}
+			} finally {
+				endSection(traced);
+			}
+		} else {
+			SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+			queryBuilder.setStrict(true);
+			String groupBy;
+			traced = beginSection("query plan", table);
+			try {
+				JoinPlan joinPlan = fullDesc.getJoinPlan(table, projection);
+				queryBuilder.setProjectionMap(fullDesc.getProjection(table));
+				queryBuilder.setTables(table + joinPlan.getJoins());
+
+				// GROUP BY forces temporary b-tree so it is added only when
+				// needed
+				ContractDesc contractDesc = selectionVars.getContractDesc();
+				groupBy = joinPlan.needsGroupBy() ? contractDesc.getIdField()
+						: null;
+			} finally {
+				endSection(traced);
+			}
 
-		String limit = uri.getQueryParameter("limit");
-		Cursor cursor = queryBuilder.query(getDb(), projection, selection,
-				selectionArgs, groupBy, null, sortOrder, limit);
+			// rows are read later, when cursor window is filled
+			traced = beginSection("query execute", table);
+			try {
+				// strict query builder validates selection and projection
+				cursor = queryBuilder.query(getDb(), projection, selection,
+						selectionArgs, groupBy, null, sortOrder, limit);
+				String wrappedSelection = TextUtils.isEmpty(selection) ? selection
+						: "(" + selection + ")";
+				sql = queryBuilder.buildQuery(projection, wrappedSelection,
+						groupBy, null, sortOrder, limit);
+				mQueryCache.put(key, sql);
+				if (pagedCursorOptions != null) {
+					// cursor was only compiled (and validated), it is not read
+					// yet
+					cursor.close();
+					cursor = new PagedCursor(this, getDb(), sql,
+							selectionArgs, uri, projection, querySelection,
+							querySelectionArgs, querySortOrder, selectionVars
+									.getContractDesc().getIdField(),
+							pagedCursorOptions);
+				}
+			} finally {
+				endSection(traced);
+			}
+		}
+		if (sqlTraceSink != null) {
+			// rows are not read yet, so it is time of compilation (and of
+			// building sql if it was not cached)
+			sqlTraceSink.onStatement(sql, null, selectionArgs, System.nanoTime()
+					- statementStartNanos);
+		}
+		if (mIndexAdvisor != null) {
+			mIndexAdvisor.check(getDb(), sql, selectionArgs, selection,
+					sortOrder);
+		}
 
+		cursor = pagination.wrapCursor(cursor);
 		Uri notificationUri = getNotificationUri(uri);
 		cursor.setNotificationUri(getContext().getContentResolver(),
 				notificationUri);
+		if (mMetrics != null) {
+			// paged cursor is not read to the end, it gives rows known so far
+			int rows = cursor instanceof PagedCursor ? ((PagedCursor) cursor)
+					.getKnownCount() : cursor.getCount();
+			mMetrics.record(selectionVars, ProviderMetrics.QUERY, startNanos,
+					rows);
+		}
 		return cursor;
 	}
 
@@ -263,33 +1596,10 @@ public abstract class BaseContentProvider extends ContentProvider implements
 		}
 	}
 
-	private Uri getNotificationUri(String table) {
-		String authority = getFullDesc().mAuthority;
-		return Uri.parse("content://" + authority + "/" + table);
-	}
-
-	@SuppressWarnings("deprecation")
-	@TargetApi(11)
-	private void printQueryInDebug(SQLiteQueryBuilder queryBuilder,
-								   String[] projection, String selection, String[] selectionArgs,
-								   String groupBy, String having, String sortOrder) {
-		if (DEBUG) {
-			String query;
-			if (Build.VERSION.SDK_INT >= 11) {
-				query = queryBuilder.buildQuery(projection, selection, groupBy,
-						having, sortOrder, null);
-			} else {
-				query = queryBuilder.buildQuery(projection, selection,
-						selectionArgs, groupBy, having, sortOrder, null);
-			}
-			Log.v(TAG, query);
-		}
-	}
-
 	@Override
 	public int update(Uri uri, ContentValues values, String selection,
 					  String[] selectionArgs) {
-
+		long startNanos = System.nanoTime();
 		SelectionVars selectionVars = getFullDesc()
 				.getSelectionVarsFromUri(uri);
 		selection = ContentProviderHelper.joinSelection(selection,
@@ -299,35 +1609,55 @@ public abstract class BaseContentProvider extends ContentProvider implements
 
 		String table = selectionVars.getTable();
 		ContractDesc contractDesc = selectionVars.getContractDesc();
+		GuidPrefetch prefetch = mGuidPrefetch.get();
+		String guidField = contractDesc.getGuidField();
+		if (prefetch != null && guidField != null
+				&& values.containsKey(guidField)) {
+			// guid of some rows may change
+			prefetch.invalidate(table);
+		}
 		ArrayList<OnUpdateTrigger> triggers = contractDesc.mOnUpdateTriggers;
-		ArrayList<OnAfterUpdateTrigger> afterTriggers = contractDesc.mOnAfterUpdateTriggers;
 		SQLiteDatabase db = getDb();
 
 		boolean doLocalTransaction = !db.inTransaction() && triggers.size() > 0;
 		if (doLocalTransaction) {
-			db.beginTransaction();
+			beginTransaction(db);
 		}
+		boolean successful = false;
+		int result;
 		try {
-			for (OnUpdateTrigger trigger : triggers) {
-				trigger.onUpdate(this, uri, selectionVars, values, selection,
-						selectionArgs);
-			}
-
-			int result = update(table, values, selection, selectionArgs);
-			for (OnAfterUpdateTrigger trigger : afterTriggers) {
-				trigger.onAfterUpdate(this, uri, selectionVars, values,
-						selection, selectionArgs);
-			}
-
+			result = updateWithTriggers(uri, selectionVars, values, selection,
+					selectionArgs);
 			if (doLocalTransaction) {
 				db.setTransactionSuccessful();
+				successful = true;
 			}
-			return result;
 		} finally {
 			if (doLocalTransaction) {
-				db.endTransaction();
+				endTransaction(db, successful);
 			}
 		}
+		recordMetrics(selectionVars, ProviderMetrics.UPDATE, startNanos,
+				result);
+		return result;
+	}
+
+	private int updateWithTriggers(Uri uri, SelectionVars selectionVars,
+			ContentValues values, String selection, String[] selectionArgs) {
+		ContractDesc contractDesc = selectionVars.getContractDesc();
+		for (OnUpdateTrigger trigger : contractDesc.mOnUpdateTriggers) {
+			onUpdate(trigger, uri, selectionVars, values, selection,
+					selectionArgs);
+		}
+
+		int result = update(selectionVars.getTable(), values, selection,
+				selectionArgs);
+
+		for (OnAfterUpdateTrigger trigger : contractDesc.mOnAfterUpdateTriggers) {
+			onAfterUpdate(trigger, uri, selectionVars, values, selection,
+					selectionArgs);
+		}
+		return result;
 	}
 
 	@Override
@@ -342,137 +1672,109 @@ public abstract class BaseContentProvider extends ContentProvider implements
 	public Cursor query(boolean distinct, String table, String[] columns,
 						String selection, String[] selectionArgs, String groupBy,
 						String having, String orderBy, String limit) {
-		if (DEBUG) {
-			StringBuilder sb = new StringBuilder();
-			sb.append("SELECT ");
-			if (distinct) {
-				sb.append(" DISTINCT ");
-			}
-			boolean next = false;
-			for (String column : columns) {
-				if (next) {
-					sb.append(", ");
-				}
-				sb.append(column);
-			}
-			sb.append(" FROM ").append(table);
-			if (selection != null) {
-				sb.append(" WHERE ").append(selection);
-			}
-			if (groupBy != null) {
-				sb.append(" GROUP BY ").append(groupBy);
-			}
-			if (having != null) {
-				sb.append(" HAVING ").append(having);
-			}
-			if (limit != null) {
-				sb.append(" LIMIT ").append(limit);
-			}
-			if (selectionArgs != null) {
-				sb.append(", Selection args: ");
-				for (String string : selectionArgs) {
-					sb.append(string).append(", ");
-				}
-			}
-
-			Log.v(TAG, sb.toString());
+		SqlTraceSink sqlTraceSink = mSqlTraceSink;
+		String sql = null;
+		if (mIndexAdvisor != null || sqlTraceSink != null) {
+			sql = SQLiteQueryBuilder.buildQueryString(distinct, table, columns,
+					selection, groupBy, having, orderBy, limit);
+		}
+		if (mIndexAdvisor != null) {
+			mIndexAdvisor.check(getDb(), sql, selectionArgs, selection,
+					orderBy);
 		}
-		return getDb().query(distinct, table, columns, selection,
+		long startNanos = sqlTraceSink == null ? 0 : System.nanoTime();
+		Cursor cursor = getDb().query(distinct, table, columns, selection,
 				selectionArgs, groupBy, having, orderBy, limit);
+		if (sqlTraceSink != null) {
+			sqlTraceSink.onStatement(sql, null, selectionArgs,
+					System.nanoTime() - startNanos);
+		}
+		return cursor;
 	}
 
 	@Override
 	public int update(String table, ContentValues values, String selection,
 					  String[] selectionArgs) {
-		if (DEBUG) {
-			StringBuilder sbArgs = new StringBuilder();
-			StringBuilder sb = new StringBuilder();
-			sb.append("UPDATE ").append(table).append(" SET ");
-			Set<Entry<String, Object>> valueSet = values.valueSet();
-			boolean next = false;
-			for (Entry<String, Object> entry : valueSet) {
-				if (next) {
-					sb.append(", ");
-				}
-				next = true;
-				sb.append(entry.getKey()).append("=?");
-				sbArgs.append(entry.getValue()).append(", ");
-			}
-			if (selection != null) {
-				sb.append(" WHERE ").append(selection);
-			}
-
-			sb.append(", Args: ").append(sbArgs.toString());
-
-			if (selectionArgs != null) {
-				sb.append(", Selection args: ");
-				for (String string : selectionArgs) {
-					sb.append(string).append(", ");
-				}
-			}
+		if (values.size() == 0) {
+			throw new IllegalArgumentException("Empty values");
+		}
 
-			Log.v(TAG, sb.toString());
+		String[] columns = getSortedColumns(values);
+		String sql = buildUpdateSql(table, columns, selection);
+		SQLiteStatement statement = mStatementCache.acquire(getDb(), sql);
+		SqlTraceSink sqlTraceSink = mSqlTraceSink;
+		long startNanos = sqlTraceSink == null ? 0 : System.nanoTime();
+		int count;
+		try {
+			bindValues(statement, columns, values, selectionArgs);
+			count = statement.executeUpdateDelete();
+		} finally {
+			mStatementCache.release(sql, statement);
+		}
+		if (sqlTraceSink != null) {
+			sqlTraceSink.onStatement(sql, values, selectionArgs,
+					System.nanoTime() - startNanos);
 		}
-		int count = getDb().update(table, values, selection, selectionArgs);
-		Uri notificationUri = getNotificationUri(table);
-		getContext().getContentResolver().notifyChange(notificationUri, null);
+		notifyChange(table);
 		return count;
 	}
 
 	@Override
 	public long insertOrThrow(String table, String nullColumnHack,
 							  ContentValues values) throws SQLException {
-		if (DEBUG) {
-			StringBuilder sbArgs = new StringBuilder();
-			StringBuilder sb = new StringBuilder();
-			sb.append("INSERT INTO ").append(table).append(" (");
-			Set<Entry<String, Object>> valueSet = values.valueSet();
-			boolean next = false;
-			int count = 0;
-			for (Entry<String, Object> entry : valueSet) {
-				if (next) {
-					sb.append(", ");
-				}
-				next = true;
-				sb.append(entry.getKey());
-				count++;
-				sbArgs.append(entry.getValue()).append(", ");
-			}
-			sb.append(") VALUES (");
-			for (int i = 0; i < count; ++i) {
-				if (i > 0) {
-					sb.append(", ");
-				}
-				sb.append("?");
+		SqlTraceSink sqlTraceSink = mSqlTraceSink;
+		long startNanos = sqlTraceSink == null ? 0 : System.nanoTime();
+		String sql;
+		long id;
+		if (values.size() == 0) {
+			id = getDb().insertOrThrow(table, nullColumnHack, values);
+			sql = null;
+		} else {
+			String[] columns = getSortedColumns(values);
+			sql = buildInsertSql(table, columns);
+			SQLiteStatement statement = mStatementCache.acquire(getDb(), sql);
+			try {
+				bindValues(statement, columns, values, null);
+				id = statement.executeInsert();
+			} finally {
+				mStatementCache.release(sql, statement);
 			}
-			sb.append(")").append(", Args: ").append(sbArgs.toString());
-			Log.v(TAG, sb.toString());
 		}
-		long id = getDb().insertOrThrow(table, nullColumnHack, values);
-		Uri notificationUri = getNotificationUri(table);
-		getContext().getContentResolver().notifyChange(notificationUri, null);
+		if (sqlTraceSink != null) {
+			if (sql == null) {
+				sql = nullColumnHack == null ? "INSERT INTO " + table
+						+ " DEFAULT VALUES" : "INSERT INTO " + table + " ("
+						+ nullColumnHack + ") VALUES (NULL)";
+			}
+			sqlTraceSink.onStatement(sql, values, null, System.nanoTime()
+					- startNanos);
+		}
+		notifyRowChange(table, id);
 		return id;
 	}
 
 	@Override
 	public int delete(String table, String whereClause, String[] whereArgs) {
-		if (DEBUG) {
-			StringBuilder sb = new StringBuilder();
-			sb.append("DELETE FROM ").append(table);
-			if (whereClause != null) {
-				sb.append(" WHERE ").append(whereClause);
-			}
-			if (whereArgs != null) {
-				sb.append(", Selection args: ");
-				for (String string : whereArgs) {
-					sb.append(string).append(", ");
-				}
-			}
-			Log.v(TAG, sb.toString());
+		GuidPrefetch prefetch = mGuidPrefetch.get();
+		if (prefetch != null) {
+			prefetch.invalidate(table);
+		}
+		String sql = buildDeleteSql(table, whereClause);
+		SQLiteStatement statement = mStatementCache.acquire(getDb(), sql);
+		SqlTraceSink sqlTraceSink = mSqlTraceSink;
+		long startNanos = sqlTraceSink == null ? 0 : System.nanoTime();
+		int count;
+		try {
+			bindValues(statement, null, null, whereArgs);
+			count = statement.executeUpdateDelete();
+		} finally {
+			mStatementCache.release(sql, statement);
+		}
+		if (sqlTraceSink != null) {
+			sqlTraceSink.onStatement(sql, null, whereArgs, System.nanoTime()
+					- startNanos);
 		}
-		int count = getDb().delete(table, whereClause, whereArgs);
-		Uri notificationUri = getNotificationUri(table);
-		getContext().getContentResolver().notifyChange(notificationUri, null);
+		notifyChange(table);
 		return count;
 	}
 
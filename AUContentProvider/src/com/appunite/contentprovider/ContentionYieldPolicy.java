@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+/**
+ * Yield as soon as other thread waits for database.
+ *
+ * Yield attempt is cheap when nobody waits for the lock (nothing is committed
+ * then), so this policy tries at every yield allowed operation and does not
+ * sleep after yield, lock is given only to threads that were waiting.
+ */
+public class ContentionYieldPolicy implements YieldPolicy {
+
+	private final int mMinOperations;
+	private final int mForceOperations;
+	private final int mMaxOperations;
+
+	public ContentionYieldPolicy() {
+		this(10, 400, 500);
+	}
+
+	/**
+	 * @param minOperations
+	 *            operations between yield attempts at yield allowed operations
+	 * @param forceOperations
+	 *            yield even if operation does not allow it after this number
+	 *            of operations
+	 * @param maxOperations
+	 *            fail if there was no yield attempt after this number of
+	 *            operations
+	 */
+	public ContentionYieldPolicy(int minOperations, int forceOperations,
+			int maxOperations) {
+		mMinOperations = minOperations;
+		mForceOperations = forceOperations;
+		mMaxOperations = maxOperations;
+	}
+
+	@Override
+	public boolean shouldYield(int operations, long millis,
+			boolean yieldAllowed) {
+		return operations >= mMinOperations && yieldAllowed
+				|| operations > mForceOperations;
+	}
+
+	@Override
+	public int getMaxOperationsPerYieldPoint() {
+		return mMaxOperations;
+	}
+
+	@Override
+	public long getSleepAfterYieldMillis() {
+		return 0;
+	}
+}
@@ -20,12 +20,18 @@ import android.database.sqlite.SQLiteDatabase;
 import android.provider.BaseColumns;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
+import com.appunite.contentprovider.ContractFullDesc.Aggregate;
+
 public class ContractDesc {
 	
 	private final String mContentType;
@@ -33,6 +39,7 @@ public class ContractDesc {
 	private final String mTableName;
 	private final String mIdField;
 	private String mGuidField = null;
+	private boolean mGuidUpsert = false;
 	
 	boolean mIsFts = false;
 	final List<TableFieldDesc> mTableFieldDescs = new ArrayList<ContractDesc.TableFieldDesc>();
@@ -43,6 +50,12 @@ public class ContractDesc {
 	ArrayList<OnAfterInsertTrigger> mOnAfterInsertTriggers = new ArrayList<OnAfterInsertTrigger>();
 	ArrayList<OnAfterUpdateTrigger> mOnAfterUpdateTriggers = new ArrayList<OnAfterUpdateTrigger>();
 	ArrayList<OnAfterDeleteTrigger> mOnAfterDeleteTriggers = new ArrayList<OnAfterDeleteTrigger>();
+	// maintained by native trigger, not by provider
+	final List<String> mUpdatedAtFields = new ArrayList<String>();
+	final List<String> mUpdateCounterFields = new ArrayList<String>();
+	final Set<String> mAutoFields = new HashSet<String>();
+	final Map<String, Aggregate> mAggregateFields = new HashMap<String, Aggregate>();
+	final List<IndexDesc> mIndexDescs = new ArrayList<IndexDesc>();
 	
 	public enum FieldType {
 		TEXT("TEXT"), INTEGER("INTEGER"), REAL("REAL"), BLOB("BLOB");
@@ -62,19 +75,72 @@ public class ContractDesc {
 
 		private final String fieldName;
 		private final String sql;
+		private final boolean aggregate;
 
 		public FakeFieldDesc(String fieldName, String sql) {
 			this.fieldName = fieldName;
 			this.sql = sql;
+			this.aggregate = isAggregateExpression(sql);
 		}
 		
 	}
 	
+	// sorted for binary search
+	private static final String[] AGGREGATE_FUNCTIONS = new String[] { "avg",
+			"count", "group_concat", "max", "min", "sum", "total" };
+	
+	/**
+	 * Check if expression calls aggregate function outside of parentheses, so
+	 * it needs GROUP BY. Sub-queries like "(SELECT count(*) ...)" are not
+	 * aggregates.
+	 */
+	static boolean isAggregateExpression(String sql) {
+		int depth = 0;
+		int length = sql.length();
+		for (int i = 0; i < length; ++i) {
+			char c = sql.charAt(i);
+			if (c == '\'' || c == '"') {
+				i = sql.indexOf(c, i + 1);
+				if (i < 0) {
+					return false;
+				}
+			} else if (c == '(') {
+				if (depth == 0) {
+					int end = i;
+					while (end > 0 && Character.isWhitespace(sql.charAt(end - 1))) {
+						end--;
+					}
+					int start = end;
+					while (start > 0
+							&& (Character.isLetterOrDigit(sql.charAt(start - 1)) || sql
+									.charAt(start - 1) == '_')) {
+						start--;
+					}
+					String function = sql.substring(start, end).toLowerCase(
+							Locale.US);
+					if (Arrays.binarySearch(AGGREGATE_FUNCTIONS, function) >= 0) {
+						return true;
+					}
+				}
+				depth++;
+			} else if (c == ')') {
+				depth--;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Current time in milliseconds computed by SQLite
+	 */
+	static final String SQL_NOW_MILLIS = "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+	
 	private static class TableFieldDesc {
 
 		public final String fieldName;
 		public final FieldType fieldType;
 		private boolean notNull;
+		private String defaultSql = null;
 
 		public TableFieldDesc(String fieldName, FieldType fieldType) {
 			this.fieldName = fieldName;
@@ -88,6 +154,102 @@ public class ContractDesc {
 			this.notNull = notNull;
 		}
 		
+		public TableFieldDesc(String fieldName, FieldType fieldType, boolean notNull, String defaultSql) {
+			this(fieldName, fieldType, notNull);
+			this.defaultSql = defaultSql;
+		}
+		
+	}
+
+	/**
+	 * Index of table created by {@link ContractDesc#sqlCreateTable(SQLiteDatabase)}
+	 */
+	public static class IndexDesc {
+		private String mName = null;
+		private final String[] mFields;
+		private String[] mCoveredFields = new String[0];
+		private boolean mUnique = false;
+		private String mWhere = null;
+		
+		private IndexDesc(String[] fields) {
+			mFields = fields;
+		}
+		
+		public static class Builder {
+			private final IndexDesc mIndexDesc;
+			
+			/**
+			 * @param fields
+			 *            indexed fields, order matters: index is used for
+			 *            queries that filter or sort by its first fields
+			 */
+			public Builder(String... fields) {
+				if (fields.length == 0)
+					throw new IllegalArgumentException("Index needs at least one field");
+				mIndexDesc = new IndexDesc(fields.clone());
+			}
+			
+			public Builder setName(String name) {
+				mIndexDesc.mName = name;
+				return this;
+			}
+			
+			public Builder setUnique(boolean unique) {
+				mIndexDesc.mUnique = unique;
+				return this;
+			}
+			
+			/**
+			 * Create partial index only for rows matching where (needs SQLite
+			 * 3.8.0, Android 5.0)
+			 */
+			public Builder setWhere(String where) {
+				mIndexDesc.mWhere = where;
+				return this;
+			}
+			
+			/**
+			 * Fields stored in index after indexed fields, so queries that
+			 * read only indexed and covered fields do not have to read the
+			 * table (they are part of the key, so they are not allowed in
+			 * unique index)
+			 */
+			public Builder addCoveredFields(String... fields) {
+				String[] covered = Arrays.copyOf(mIndexDesc.mCoveredFields,
+						mIndexDesc.mCoveredFields.length + fields.length);
+				System.arraycopy(fields, 0, covered,
+						mIndexDesc.mCoveredFields.length, fields.length);
+				mIndexDesc.mCoveredFields = covered;
+				return this;
+			}
+			
+			public IndexDesc build() {
+				if (mIndexDesc.mUnique && mIndexDesc.mCoveredFields.length > 0)
+					throw new IllegalArgumentException("Unique index could not have covered fields");
+				return mIndexDesc;
+			}
+		}
+		
+		String getName(String tableName) {
+			if (mName != null) {
+				return mName;
+			}
+			StringBuilder sb = new StringBuilder();
+			sb.append(tableName).append("_idx");
+			for (String field : mFields) {
+				sb.append("_").append(field);
+			}
+			return sb.toString();
+		}
+		
+		String sqlCreateIndex(String tableName) {
+			String[] columns = Arrays.copyOf(mFields, mFields.length
+					+ mCoveredFields.length);
+			System.arraycopy(mCoveredFields, 0, columns, mFields.length,
+					mCoveredFields.length);
+			return DataHelper.createIndexIfNotExist(getName(tableName),
+					tableName, mUnique, mWhere, columns);
+		}
 	}
 
 	protected ContractDesc(String tableName, String idField, String contentType, String contentItemType) {
@@ -136,6 +298,127 @@ public class ContractDesc {
 			return this.addTableField(guidFieldName, FieldType.TEXT);
 		}
 		
+		/**
+		 * Same as {@link #setGuidField(String)} but row with existing guid is
+		 * updated by single INSERT ... ON CONFLICT DO UPDATE statement instead
+		 * of looking up id and updating it separately.
+		 * 
+		 * Single statement can not call triggers only for inserted or only
+		 * for updated row, so tables with {@link OnUpdateTrigger}s,
+		 * {@link OnAfterInsertTrigger}s or {@link OnInsertTrigger}s added
+		 * after guid field, fts tables and SQLite older than 3.35 fall back to
+		 * lookup and update.
+		 */
+		public Builder setGuidUpsertField(String guidFieldName) {
+			setGuidField(guidFieldName);
+			mContractDesc.mGuidUpsert = true;
+			return this;
+		}
+		
+		/**
+		 * Add INTEGER field set by SQLite to time of insert in milliseconds
+		 * (if not given in inserted values)
+		 */
+		public Builder addCreatedAtField(String fieldName) {
+			checkIfFieldExistAndAdd(fieldName);
+			mContractDesc.mTableFieldDescs.add(new TableFieldDesc(fieldName,
+					FieldType.INTEGER, false, SQL_NOW_MILLIS));
+			mContractDesc.mAutoFields.add(fieldName);
+			return this;
+		}
+		
+		/**
+		 * Add INTEGER field set by SQLite to time of insert and of every update
+		 * in milliseconds.
+		 * 
+		 * Updates are stamped by native AFTER UPDATE trigger created by
+		 * {@link ContractDesc#sqlCreateTable(SQLiteDatabase)}, so no
+		 * {@link OnUpdateTrigger} and no local transaction is needed.
+		 */
+		public Builder addUpdatedAtField(String fieldName) {
+			checkIfFieldExistAndAdd(fieldName);
+			mContractDesc.mTableFieldDescs.add(new TableFieldDesc(fieldName,
+					FieldType.INTEGER, false, SQL_NOW_MILLIS));
+			mContractDesc.mAutoFields.add(fieldName);
+			mContractDesc.mUpdatedAtFields.add(fieldName);
+			return this;
+		}
+		
+		/**
+		 * Add INTEGER field that starts with 0 and is incremented by native
+		 * trigger on every update of row
+		 */
+		public Builder addUpdateCounterField(String fieldName) {
+			checkIfFieldExistAndAdd(fieldName);
+			mContractDesc.mTableFieldDescs.add(new TableFieldDesc(fieldName,
+					FieldType.INTEGER, true, "0"));
+			mContractDesc.mAutoFields.add(fieldName);
+			mContractDesc.mUpdateCounterFields.add(fieldName);
+			return this;
+		}
+		
+		/**
+		 * Add field with aggregate of connected rows of other table. Value is
+		 * stored, so it can be sorted and filtered by index. Native triggers
+		 * that maintain it are added by
+		 * {@link ContractFullDesc.Builder#addAggregateField} together with
+		 * connected table.
+		 * 
+		 * @param fieldType
+		 *            type of aggregated field of other table, ignored for
+		 *            {@link Aggregate#COUNT}
+		 */
+		public Builder addAggregateField(String fieldName, Aggregate aggregate,
+				FieldType fieldType) {
+			if (aggregate == Aggregate.COUNT) {
+				fieldType = FieldType.INTEGER;
+			} else if (fieldType == null) {
+				throw new IllegalArgumentException(String.format(
+						"Type of aggregate field %s is required", fieldName));
+			}
+			checkIfFieldExistAndAdd(fieldName);
+			boolean zeroDefault = aggregate == Aggregate.COUNT
+					|| aggregate == Aggregate.SUM;
+			mContractDesc.mTableFieldDescs.add(new TableFieldDesc(fieldName,
+					fieldType, zeroDefault, zeroDefault ? "0" : null));
+			// changed aggregate is not an update of row
+			mContractDesc.mAutoFields.add(fieldName);
+			mContractDesc.mAggregateFields.put(fieldName, aggregate);
+			return this;
+		}
+		
+		/**
+		 * Add non unique index on fields
+		 */
+		public Builder addIndex(String... fields) {
+			return addIndex(new IndexDesc.Builder(fields).build());
+		}
+		
+		public Builder addUniqueIndex(String... fields) {
+			return addIndex(new IndexDesc.Builder(fields).setUnique(true)
+					.build());
+		}
+		
+		/**
+		 * Add index, use {@link IndexDesc.Builder} for partial and covering
+		 * indexes
+		 */
+		public Builder addIndex(IndexDesc indexDesc) {
+			checkFieldsExist(indexDesc.mFields);
+			checkFieldsExist(indexDesc.mCoveredFields);
+			mContractDesc.mIndexDescs.add(indexDesc);
+			return this;
+		}
+		
+		private void checkFieldsExist(String[] fields) {
+			for (String field : fields) {
+				if (!mFields.contains(field)) {
+					throw new IllegalArgumentException(String.format(
+							"Field %s does not exist in table", field));
+				}
+			}
+		}
+		
 		public Builder addFakeField(String fieldName, String sql) {
 			checkIfFieldExistAndAdd(fieldName);
 			FakeFieldDesc fakeFieldDesc = new FakeFieldDesc(fieldName, sql);
@@ -178,6 +461,10 @@ public class ContractDesc {
 		}
 		
 		public ContractDesc buildFts() {
+			if (!mContractDesc.mAutoFields.isEmpty())
+				throw new IllegalArgumentException("Fts tables does not support auto fields");
+			if (!mContractDesc.mIndexDescs.isEmpty())
+				throw new IllegalArgumentException("Fts tables does not support indexes");
 			mContractDesc.mIsFts  = true;
 			return mContractDesc;
 		}
@@ -225,6 +512,9 @@ public class ContractDesc {
 			if (field.notNull) {
 				sb.append("NOT NULL ");
 			}
+			if (field.defaultSql != null) {
+				sb.append("DEFAULT (").append(field.defaultSql).append(") ");
+			}
 			if (fieldsIter.hasNext())
 				sb.append(", ");
 		}
@@ -232,6 +522,49 @@ public class ContractDesc {
 		return sb.toString();
 	}
 	
+	/**
+	 * @return AFTER UPDATE trigger that maintains updated at and counter
+	 *         fields or null if there are no such fields
+	 */
+	private String sqlCreateAutoUpdateTriggerQuery() {
+		if (mUpdatedAtFields.isEmpty() && mUpdateCounterFields.isEmpty()) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("CREATE TRIGGER IF NOT EXISTS ").append(mTableName)
+				.append("_auto_update AFTER UPDATE");
+		// trigger does not fire on its own update of auto fields
+		boolean first = true;
+		for (TableFieldDesc field : mTableFieldDescs) {
+			if (mAutoFields.contains(field.fieldName)) {
+				continue;
+			}
+			sb.append(first ? " OF " : ", ").append(field.fieldName);
+			first = false;
+		}
+		sb.append(" ON ").append(mTableName);
+		sb.append(" FOR EACH ROW BEGIN UPDATE ").append(mTableName)
+				.append(" SET ");
+		first = true;
+		for (String field : mUpdatedAtFields) {
+			if (!first) {
+				sb.append(", ");
+			}
+			first = false;
+			sb.append(field).append(" = ").append(SQL_NOW_MILLIS);
+		}
+		for (String field : mUpdateCounterFields) {
+			if (!first) {
+				sb.append(", ");
+			}
+			first = false;
+			sb.append(field).append(" = ").append(field).append(" + 1");
+		}
+		sb.append(" WHERE ").append(mIdField).append(" = NEW.")
+				.append(mIdField).append("; END");
+		return sb.toString();
+	}
+	
 	public void sqlDropTable(SQLiteDatabase db) {
 		db.execSQL(sqlDropTableQuery());
 	}
@@ -244,6 +577,13 @@ public class ContractDesc {
 						mTableName, mGuidField);
 				db.execSQL(sql);
 			}
+			for (IndexDesc indexDesc : mIndexDescs) {
+				db.execSQL(indexDesc.sqlCreateIndex(mTableName));
+			}
+			String triggerSql = sqlCreateAutoUpdateTriggerQuery();
+			if (triggerSql != null) {
+				db.execSQL(triggerSql);
+			}
 		}
 	}
 	
@@ -286,7 +626,59 @@ public class ContractDesc {
 		return fields;
 	}
 	
+	Collection<String> getAggregateFields() {
+		Collection<String> fields = new ArrayList<String>();
+		for (FakeFieldDesc desc : mFakeFieldsDescs) {
+			if (desc.aggregate) {
+				fields.add(desc.fieldName);
+			}
+		}
+		return fields;
+	}
+	
+	/**
+	 * @return true if field is first field of declared full (not partial)
+	 *         index, so there is no need for other index on it
+	 */
+	boolean isIndexPrefix(String fieldName) {
+		for (IndexDesc indexDesc : mIndexDescs) {
+			if (indexDesc.mWhere == null
+					&& indexDesc.mFields[0].equals(fieldName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return type of table field or null if there is no such table field
+	 */
+	FieldType getFieldType(String fieldName) {
+		if (mIdField.equals(fieldName)) {
+			return FieldType.INTEGER;
+		}
+		for (TableFieldDesc desc : mTableFieldDescs) {
+			if (desc.fieldName.equals(fieldName)) {
+				return desc.fieldType;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return aggregate of field added by
+	 *         {@link Builder#addAggregateField(String, Aggregate, FieldType)}
+	 *         or null if it is not aggregate field
+	 */
+	Aggregate getAggregate(String fieldName) {
+		return mAggregateFields.get(fieldName);
+	}
+	
 	public String getGuidField() {
 		return mGuidField ;
 	}
+	
+	public boolean isGuidUpsert() {
+		return mGuidUpsert;
+	}
 }
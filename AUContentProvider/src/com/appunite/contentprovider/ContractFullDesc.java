@@ -17,67 +17,258 @@
 package com.appunite.contentprovider;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.appunite.contentprovider.ContractDesc.FieldType;
 
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.provider.BaseColumns;
-import android.text.TextUtils;
 
 public class ContractFullDesc {
 
-    private String key;
+	private static final Set<String> RESERVED_PARAMETERS = new HashSet<String>(
+			Arrays.asList(Pagination.PARAM_LIMIT, Pagination.PARAM_OFFSET,
+					Pagination.PARAM_AFTER, Pagination.PARAM_BEFORE));
 
-    private ContractFullDesc() {
+	private ContractFullDesc(String authority) {
+		mAuthority = authority;
 	}
 
-	private final Collection<ConnectionDesc> mConnectionDescs = new ArrayList<ContractFullDesc.ConnectionDesc>();
-	public String mAuthority;
+	/*
+	 * Everything below is filled by Builder and never changed after build(),
+	 * so contract can be read from many binder threads without locking.
+	 */
+	private Collection<ConnectionDesc> mConnectionDescs = new ArrayList<ContractFullDesc.ConnectionDesc>();
+	public final String mAuthority;
 	private Map<String, ContractDesc> mTables = new HashMap<String, ContractDesc>();
 	private Map<String, String> mFields = new HashMap<String, String>();
-	private Map<String, ProjectionMap> mFinalProjectionMaps = new HashMap<String, ProjectionMap>();
-	private Map<String, ProjectionMap> mSimpleProjectionMaps = new HashMap<String, ProjectionMap>();
+	private Map<String, Uri> mTableUris = new HashMap<String, Uri>();
+	private Map<String, RouteNode> mRoutes = null;
+	private List<Route> mRouteList;
+	private String[] mTableNames;
+	private Map<String, Integer> mTableIndexes;
+	private Map<String, Integer> mFieldTableIndexes;
+	private Set<String> mAggregateFields;
+	private Map<String, String>[] mProjections;
+	private JoinTree[] mJoinTrees;
+	private Map<String, List<ConnectionDesc>> mOnDeleteConnections;
+	private List<AggregateDesc> mAggregateDescs = new ArrayList<AggregateDesc>();
+	private boolean mBuilt = false;
 
 	public ContractDesc getContractDesc(String tableName) {
 		return mTables.get(tableName);
 	}
 
+	/**
+	 * @return name of table that contains field or null
+	 */
+	String getTableForField(String field) {
+		return mFields.get(field);
+	}
+
+	public Uri getTableUri(String tableName) {
+		Uri uri = mTableUris.get(tableName);
+		if (uri == null)
+			throw new IllegalArgumentException("Unkonwon table " + tableName);
+		return uri;
+	}
+
+	/**
+	 * Read only projection map of table with columns of all tables that can be
+	 * joined to it. Views of all tables share one {@link ProjectionRegistry}.
+	 */
+	public Map<String, String> getProjection(String tableName) {
+		Integer table = mTableIndexes.get(tableName);
+		if (table == null)
+			throw new IllegalArgumentException("Unkonwon table " + tableName);
+		return mProjections[table];
+	}
+
+	/**
+	 * @deprecated use {@link #getProjection(String)} that does not copy
+	 *             projection
+	 */
+	@Deprecated
 	public ProjectionMap getFinalProjectionMap(String tableName) {
-		ProjectionMap projectionMap = mFinalProjectionMaps.get(tableName);
-		if (projectionMap != null)
-			return projectionMap;
+		return new ProjectionMap.Builder().addAll(getProjection(tableName))
+				.build();
+	}
 
-		ProjectionMap.Builder builder = new ProjectionMap.Builder();
-		for (Iterator<String> iterator = mSimpleProjectionMaps.keySet()
-				.iterator(); iterator.hasNext();) {
-			String simpleTable = iterator.next();
-			if (simpleTable.equals(tableName))
-				continue;
-			builder.addAll(mSimpleProjectionMaps.get(simpleTable));
+	/**
+	 * What happens with rows of N table when row of 1 table is deleted by
+	 * provider. Actions are executed as one set based statement per connection
+	 * before row of 1 table is deleted.
+	 */
+	public enum OnDeleteAction {
+		/**
+		 * Rows of N table are not changed
+		 */
+		NO_ACTION,
+		/**
+		 * Rows of N table are deleted (with their triggers and actions)
+		 */
+		CASCADE,
+		/**
+		 * Connection field of N table rows is set to null
+		 */
+		SET_NULL,
+		/**
+		 * Delete fails with SQLiteConstraintException if there are connected
+		 * rows in N table
+		 */
+		RESTRICT
+	}
+
+	/**
+	 * Function of materialized aggregate field, see
+	 * {@link Builder#addAggregateField}
+	 */
+	public enum Aggregate {
+		COUNT, SUM, MIN, MAX
+	}
+
+	/**
+	 * Aggregate of N table rows stored in 1 table and maintained by native
+	 * triggers on N table
+	 */
+	static class AggregateDesc {
+		final ConnectionDesc connection;
+		final String field;
+		final Aggregate aggregate;
+		final String valueField;
+
+		AggregateDesc(ConnectionDesc connection, String field,
+				Aggregate aggregate, String valueField) {
+			this.connection = connection;
+			this.field = field;
+			this.aggregate = aggregate;
+			this.valueField = valueField;
+		}
+
+		/**
+		 * @return sub-query computing aggregate of rows connected to key
+		 */
+		String computeSql(String key) {
+			String tableN = connection.tableN;
+			String value = tableN + "." + valueField;
+			String function;
+			switch (aggregate) {
+			case COUNT:
+				function = "count(*)";
+				break;
+			case SUM:
+				function = "coalesce(sum(" + value + "), 0)";
+				break;
+			case MIN:
+				function = "min(" + value + ")";
+				break;
+			default:
+				function = "max(" + value + ")";
+				break;
+			}
+			return "(SELECT " + function + " FROM " + tableN + " WHERE "
+					+ tableN + "." + connection.fieldN + " = " + key + ")";
 		}
-		ProjectionMap tableProjectionMap = mSimpleProjectionMaps.get(tableName);
-		if (tableProjectionMap == null)
-			throw new IllegalArgumentException("Unkonwon table " + tableName);
-		builder.addAll(tableProjectionMap);
-		projectionMap = builder.build();
 
-		mFinalProjectionMaps.put(tableName, projectionMap);
-		return projectionMap;
+		/**
+		 * @return update of 1 table row connected to given row of N table
+		 *         ("NEW" or "OLD") when this row is added or removed
+		 */
+		private String updateSql(String row, boolean added) {
+			String set;
+			switch (aggregate) {
+			case COUNT:
+				set = field + (added ? " + 1" : " - 1");
+				break;
+			case SUM:
+				set = field + (added ? " + " : " - ") + "coalesce(" + row + "."
+						+ valueField + ", 0)";
+				break;
+			default:
+				if (added) {
+					String compare = aggregate == Aggregate.MIN ? " < " : " > ";
+					set = "CASE WHEN " + field + " IS NULL OR " + row + "."
+							+ valueField + compare + field + " THEN " + row
+							+ "." + valueField + " ELSE " + field + " END";
+				} else {
+					// removed min or max could not be undone, compute again
+					set = computeSql(row + "." + connection.fieldN);
+				}
+				break;
+			}
+			return "UPDATE " + connection.table1 + " SET " + field + " = "
+					+ set + " WHERE " + connection.field1 + " = " + row + "."
+					+ connection.fieldN + ";";
+		}
+
+		List<String> sqlCreateTriggers() {
+			String tableN = connection.tableN;
+			String name = tableN + "_" + connection.table1 + "_" + field;
+			String whenAdded = aggregate == Aggregate.MIN
+					|| aggregate == Aggregate.MAX ? " WHEN NEW." + valueField
+					+ " IS NOT NULL" : "";
+			String updateOf = aggregate == Aggregate.COUNT ? connection.fieldN
+					: connection.fieldN + ", " + valueField;
+			List<String> triggers = new ArrayList<String>(5);
+			triggers.add("CREATE TRIGGER IF NOT EXISTS " + name
+					+ "_insert AFTER INSERT ON " + tableN + " FOR EACH ROW"
+					+ whenAdded + " BEGIN " + updateSql("NEW", true) + " END");
+			triggers.add("CREATE TRIGGER IF NOT EXISTS " + name
+					+ "_delete AFTER DELETE ON " + tableN
+					+ " FOR EACH ROW BEGIN " + updateSql("OLD", false)
+					+ " END");
+			triggers.add("CREATE TRIGGER IF NOT EXISTS " + name
+					+ "_update AFTER UPDATE OF " + updateOf + " ON " + tableN
+					+ " FOR EACH ROW BEGIN " + updateSql("OLD", false) + " "
+					+ updateSql("NEW", true) + " END");
+			// rows of N table could be inserted before row of 1 table or
+			// connected to it by change of its key
+			String table1 = connection.table1;
+			String computeOwn = "UPDATE " + table1 + " SET " + field + " = "
+					+ computeSql("NEW." + connection.field1)
+					+ " WHERE rowid = NEW.rowid;";
+			triggers.add("CREATE TRIGGER IF NOT EXISTS " + name
+					+ "_parent_insert AFTER INSERT ON " + table1
+					+ " FOR EACH ROW BEGIN " + computeOwn + " END");
+			triggers.add("CREATE TRIGGER IF NOT EXISTS " + name
+					+ "_parent_update AFTER UPDATE OF " + connection.field1
+					+ " ON " + table1 + " FOR EACH ROW BEGIN " + computeOwn
+					+ " END");
+			return triggers;
+		}
+
+		String sqlRebuild() {
+			return "UPDATE " + connection.table1 + " SET " + field + " = "
+					+ computeSql(connection.table1 + "." + connection.field1);
+		}
 	}
 
 	public static class ConnectionDesc {
-		String table1;
-		String field1;
-		String tableN;
-		String fieldN;
+		final String table1;
+		final String field1;
+		final String tableN;
+		final String fieldN;
+		final OnDeleteAction onDelete;
+
+		ConnectionDesc(String table1, String field1, String tableN,
+				String fieldN, OnDeleteAction onDelete) {
+			this.table1 = table1;
+			this.field1 = field1;
+			this.tableN = tableN;
+			this.fieldN = fieldN;
+			this.onDelete = onDelete;
+		}
 
 		@Override
 		public String toString() {
@@ -92,8 +283,7 @@ public class ContractFullDesc {
 		private Set<String> mFields;
 
 		public Builder(String authority) {
-			mDesc = new ContractFullDesc();
-			mDesc.mAuthority = authority;
+			mDesc = new ContractFullDesc(authority);
 			mTablesNames = new HashSet<String>();
 			mFields = new HashSet<String>();
 		}
@@ -133,31 +323,389 @@ public class ContractFullDesc {
 			return this;
 		}
 
+		public Builder addConnection1n(ContractDesc desc1, String field1,
+				ContractDesc descN, String fieldN, OnDeleteAction onDelete) {
+			mDesc.addConnection1n(desc1, field1, descN, fieldN, onDelete);
+			return this;
+		}
+
+		/**
+		 * Maintain aggregate field of desc1 table with connected rows of descN
+		 * table. Field have to be declared by
+		 * {@link ContractDesc.Builder#addAggregateField}. It is updated by
+		 * native triggers on every insert, update and delete of descN rows and
+		 * computed for inserted desc1 rows. Use
+		 * {@link BaseContentProvider#rebuildAggregates()} to compute values of
+		 * existing rows again.
+		 * 
+		 * Connection between tables have to be added before.
+		 * 
+		 * @param valueFieldN
+		 *            field of descN that is aggregated, ignored for
+		 *            {@link Aggregate#COUNT}
+		 */
+		public Builder addAggregateField(ContractDesc desc1, String field,
+				Aggregate aggregate, ContractDesc descN, String valueFieldN) {
+			mDesc.addAggregateField(desc1, field, aggregate, descN,
+					valueFieldN);
+			return this;
+		}
+
 		public ContractFullDesc build() {
+			if (!mDesc.mBuilt) {
+				mDesc.freeze();
+			}
 			return mDesc;
 		}
 	}
 
 	public void addConnection1n(ContractDesc desc1, String field1,
 			ContractDesc descN, String fieldN) {
-		ConnectionDesc desc = new ConnectionDesc();
-		desc.table1 = desc1.getTableName();
-		desc.field1 = field1;
-		desc.tableN = descN.getTableName();
-		desc.fieldN = fieldN;
-		mConnectionDescs.add(desc);
+		addConnection1n(desc1, field1, descN, fieldN, OnDeleteAction.NO_ACTION);
+	}
+
+	public void addConnection1n(ContractDesc desc1, String field1,
+			ContractDesc descN, String fieldN, OnDeleteAction onDelete) {
+		checkNotBuilt();
+		if (onDelete == null)
+			throw new IllegalArgumentException("onDelete could not be null");
+		mConnectionDescs.add(new ConnectionDesc(desc1.getTableName(), field1,
+				descN.getTableName(), fieldN, onDelete));
+	}
+
+	public void addAggregateField(ContractDesc desc1, String field,
+			Aggregate aggregate, ContractDesc descN, String valueFieldN) {
+		checkNotBuilt();
+		ConnectionDesc connection = null;
+		for (ConnectionDesc connectionDesc : mConnectionDescs) {
+			if (connectionDesc.table1.equals(desc1.getTableName())
+					&& connectionDesc.tableN.equals(descN.getTableName())) {
+				connection = connectionDesc;
+				break;
+			}
+		}
+		if (connection == null)
+			throw new IllegalArgumentException(String.format(
+					"There is no connection %s->%s", desc1.getTableName(),
+					descN.getTableName()));
+		if (desc1.getAggregate(field) != aggregate)
+			throw new IllegalArgumentException(String.format(
+					"Field %s is not declared as %s aggregate in table %s",
+					field, aggregate, desc1.getTableName()));
+		for (AggregateDesc aggregateDesc : mAggregateDescs) {
+			if (aggregateDesc.field.equals(field))
+				throw new IllegalArgumentException(String.format(
+						"Aggregate field %s already added", field));
+		}
+		if (aggregate == Aggregate.COUNT) {
+			valueFieldN = null;
+		} else {
+			FieldType fieldType = descN.getFieldType(valueFieldN);
+			if (fieldType == null)
+				throw new IllegalArgumentException(String.format(
+						"Unknown field %s in table %s", valueFieldN,
+						descN.getTableName()));
+			if (fieldType != desc1.getFieldType(field))
+				throw new IllegalArgumentException(String.format(
+						"Type of field %s does not match type of %s", field,
+						valueFieldN));
+		}
+		mAggregateDescs.add(new AggregateDesc(connection, field, aggregate,
+				valueFieldN));
+	}
+
+	/**
+	 * Every declared aggregate field needs its triggers, otherwise it would
+	 * never change
+	 */
+	private void checkAggregateFields() {
+		Set<String> maintained = new HashSet<String>();
+		for (AggregateDesc aggregateDesc : mAggregateDescs) {
+			maintained.add(aggregateDesc.field);
+		}
+		for (ContractDesc contractDesc : mTables.values()) {
+			for (String field : contractDesc.mAggregateFields.keySet()) {
+				if (!maintained.contains(field))
+					throw new IllegalArgumentException(String.format(
+							"Aggregate field %s of table %s is not maintained, "
+									+ "use Builder.addAggregateField", field,
+							contractDesc.getTableName()));
+			}
+		}
+	}
+
+	/**
+	 * Compute all aggregate fields again
+	 * 
+	 * @return tables that were updated
+	 */
+	public Set<String> rebuildAggregates(SQLiteDatabase db) {
+		Set<String> tables = new HashSet<String>();
+		for (AggregateDesc aggregateDesc : mAggregateDescs) {
+			db.execSQL(aggregateDesc.sqlRebuild());
+			tables.add(aggregateDesc.connection.table1);
+		}
+		return tables;
+	}
+
+	/**
+	 * @return connections of table as 1 side that have delete action
+	 */
+	List<ConnectionDesc> getOnDeleteConnections(String table1) {
+		List<ConnectionDesc> connections = mOnDeleteConnections.get(table1);
+		if (connections == null) {
+			return Collections.emptyList();
+		}
+		return connections;
+	}
+
+	private void compileOnDeleteConnections() {
+		mOnDeleteConnections = new HashMap<String, List<ConnectionDesc>>();
+		for (ConnectionDesc connection : mConnectionDescs) {
+			if (connection.onDelete == OnDeleteAction.NO_ACTION) {
+				continue;
+			}
+			List<ConnectionDesc> connections = mOnDeleteConnections
+					.get(connection.table1);
+			if (connections == null) {
+				connections = new ArrayList<ConnectionDesc>();
+				mOnDeleteConnections.put(connection.table1, connections);
+			}
+			connections.add(connection);
+		}
+		for (String table : mOnDeleteConnections.keySet()) {
+			checkNoCascadeCycle(table, new HashSet<String>());
+		}
+	}
+
+	private void checkNoCascadeCycle(String table, Set<String> path) {
+		if (!path.add(table)) {
+			throw new IllegalArgumentException(
+					"Cascade delete cycle through table " + table);
+		}
+		for (ConnectionDesc connection : getOnDeleteConnections(table)) {
+			if (connection.onDelete == OnDeleteAction.CASCADE) {
+				checkNoCascadeCycle(connection.tableN, path);
+			}
+		}
+		path.remove(table);
 	}
 
 	public void addTable(ContractDesc table) {
+		checkNotBuilt();
 		String tableName = table.getTableName();
 		mTables.put(tableName, table);
-		mSimpleProjectionMaps.put(tableName, table.buildProjectionMap());
+		mTableUris.put(tableName,
+				Uri.parse("content://" + mAuthority + "/" + tableName));
 		Collection<String> fields = table.getFieldsWithId();
 		for (String field : fields) {
 			mFields.put(field, tableName);
 		}
 	}
 
+	private void compileJoinTrees() {
+		int tablesCount = mTables.size();
+		mTableNames = mTables.keySet().toArray(new String[tablesCount]);
+		Map<String, Integer> tableIndexes = new HashMap<String, Integer>();
+		for (int i = 0; i < tablesCount; ++i) {
+			tableIndexes.put(mTableNames[i], i);
+		}
+		Map<String, Integer> fieldTableIndexes = new HashMap<String, Integer>();
+		for (Entry<String, String> entry : mFields.entrySet()) {
+			fieldTableIndexes.put(entry.getKey(),
+					tableIndexes.get(entry.getValue()));
+		}
+		Set<String> aggregateFields = new HashSet<String>();
+		for (ContractDesc contractDesc : mTables.values()) {
+			aggregateFields.addAll(contractDesc.getAggregateFields());
+		}
+		mAggregateFields = Collections.unmodifiableSet(aggregateFields);
+		mTableIndexes = Collections.unmodifiableMap(tableIndexes);
+		mFieldTableIndexes = Collections.unmodifiableMap(fieldTableIndexes);
+		mJoinTrees = new JoinTree[tablesCount];
+		for (int i = 0; i < tablesCount; ++i) {
+			mJoinTrees[i] = buildJoinTree(i);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void compileProjections() {
+		int tablesCount = mTableNames.length;
+		ProjectionMap[] tableProjections = new ProjectionMap[tablesCount];
+		for (int table = 0; table < tablesCount; ++table) {
+			tableProjections[table] = mTables.get(mTableNames[table])
+					.buildProjectionMap();
+		}
+		ProjectionRegistry registry = new ProjectionRegistry(tableProjections);
+		mProjections = new Map[tablesCount];
+		for (int table = 0; table < tablesCount; ++table) {
+			// tables reachable by joins
+			BitSet visibleTables = new BitSet(tablesCount);
+			BitSet[] paths = mJoinTrees[table].mPaths;
+			for (int i = 0; i < tablesCount; ++i) {
+				if (paths[i] != null) {
+					visibleTables.set(i);
+				}
+			}
+			mProjections[table] = registry.createView(table, visibleTables);
+		}
+	}
+
+	private void checkNotBuilt() {
+		if (mBuilt) {
+			throw new IllegalStateException(
+					"Contract can not be changed after build()");
+		}
+	}
+
+	/**
+	 * Precompute everything that is needed by readers and make it read only
+	 */
+	private void freeze() {
+		checkAggregateFields();
+		compileRoutes();
+		compileJoinTrees();
+		compileProjections();
+		compileOnDeleteConnections();
+		mConnectionDescs = Collections.unmodifiableCollection(mConnectionDescs);
+		mAggregateDescs = Collections.unmodifiableList(mAggregateDescs);
+		mTables = Collections.unmodifiableMap(mTables);
+		mFields = Collections.unmodifiableMap(mFields);
+		mTableUris = Collections.unmodifiableMap(mTableUris);
+		mBuilt = true;
+	}
+
+	private static class RouteNode {
+		Route mDirRoute;
+		Route mItemRoute;
+		final Map<String, RouteNode> mChildren = new HashMap<String, RouteNode>();
+	}
+
+	/**
+	 * Precompiled uri shape with prebuilt selection, so resolving uri is only
+	 * slotting in arguments
+	 */
+	public static class Route {
+		private final String mName;
+		private final String mTable;
+		private final ContractDesc mContractDesc;
+		private final boolean mHasId;
+		private final boolean mHasParentId;
+		private final String mPathSelection;
+		private final String mInsertField;
+		private final SelectionVars mSelectionVars;
+		private int mIndex;
+
+		private Route(String name, ContractDesc contractDesc, boolean hasId,
+				ContractDesc contractDesc1, ConnectionDesc connection) {
+			mName = name;
+			mTable = contractDesc.getTableName();
+			mContractDesc = contractDesc;
+			mHasId = hasId;
+			mHasParentId = connection != null;
+
+			StringBuilder where = new StringBuilder();
+			if (hasId) {
+				where.append("(");
+				where.append(contractDesc.getIdField());
+				where.append(" == ?)");
+			}
+			String insertField = null;
+			if (connection != null) {
+				if (where.length() > 0) {
+					where.append(" AND ");
+				}
+				if (contractDesc1.getIdField().equals(connection.field1)) {
+					// if field that we using for join is same as "id" we do not
+					// have to ask database for value to create join
+					where.append("(");
+					where.append(connection.fieldN);
+					where.append(" == ?)");
+					insertField = connection.fieldN;
+				} else {
+					where.append("(");
+					where.append(connection.fieldN);
+					where.append(" IN ( SELECT ");
+					where.append(connection.field1);
+					where.append(" FROM ");
+					where.append(connection.table1);
+					where.append(" WHERE (");
+					where.append(contractDesc1.getIdField());
+					where.append(" = ? )))");
+				}
+			}
+			mInsertField = insertField;
+			mPathSelection = where.length() == 0 ? null : where.toString();
+			mSelectionVars = hasId || connection != null ? null
+					: new SelectionVars(mTable, null,
+							Collections.<String> emptyList(), null, null,
+							contractDesc);
+			if (mSelectionVars != null) {
+				mSelectionVars.mRoute = this;
+			}
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public String getTable() {
+			return mTable;
+		}
+
+		/**
+		 * @return index of route in {@link ContractFullDesc#getRoutes()}
+		 */
+		public int getIndex() {
+			return mIndex;
+		}
+
+		SelectionVars getSelectionVars(Map<String, String> parameters,
+				String parentId, String id) {
+			if (mSelectionVars != null && parameters.isEmpty())
+				return mSelectionVars;
+
+			List<String> selectionArgs = new ArrayList<String>(
+					parameters.size() + 2);
+			String selection;
+			if (parameters.isEmpty()) {
+				selection = mPathSelection;
+			} else {
+				StringBuilder where = new StringBuilder();
+				for (Entry<String, String> entry : parameters.entrySet()) {
+					if (where.length() > 0) {
+						where.append(" AND ");
+					}
+					where.append("(");
+					where.append(entry.getKey());
+					where.append(" = ?)");
+					selectionArgs.add(entry.getValue());
+				}
+				if (mPathSelection != null) {
+					where.append(" AND ");
+					where.append(mPathSelection);
+				}
+				selection = where.toString();
+			}
+			if (mHasId) {
+				selectionArgs.add(id);
+			}
+			if (mHasParentId) {
+				selectionArgs.add(parentId);
+			}
+			SelectionVars selectionVars = new SelectionVars(mTable,
+					selection, selectionArgs, mInsertField,
+					mInsertField == null ? null : parentId, mContractDesc);
+			selectionVars.mRoute = this;
+			return selectionVars;
+		}
+
+		@Override
+		public String toString() {
+			return mName;
+		}
+	}
+
 	public static class SelectionVars {
 		public String getTable() {
 			return mTable;
@@ -177,12 +725,17 @@ public class ContractFullDesc {
 		public ContractDesc getContractDesc() {
 			return mContractDesc;
 		}
+		public Route getRoute() {
+			return mRoute;
+		}
 		private final String mTable;
 		private final String mSelection;
 		private final Collection<String> mSelectionArgs;
 		private final String mInsertField;
 		private final String mInsertValue;
 		private final ContractDesc mContractDesc;
+		// route that resolved uri, null if created outside of contract
+		Route mRoute = null;
 		
 		public SelectionVars(String table, String selection, Collection<String> selectionArgs, String insertField, String insertValue, ContractDesc contractDesc) {
 			mTable = table;
@@ -204,90 +757,151 @@ public class ContractFullDesc {
 	}
 
 	/**
-	 * Return All joins that have to be processed between two or more tables
-	 * even if there are no direct connection.
+	 * Joins that can be done from one base table. Computed at build time by
+	 * BFS over connections (from N side to 1 side).
 	 * 
 	 * If there are model: books.book_shop_id -> book_shop.id,
 	 * book_shop.book_store_id -> book_store.id. You ask for: book, book_sotre.
-	 * Return: book, book_shop, book_store - because there no dirrect connection
+	 * Joins: book, book_shop, book_store - because there no dirrect connection
 	 * between book and book_store
-	 * 
-	 * @param toFind
-	 *            tables to find destination
-	 * @param baseTable
-	 *            base table
-	 * @return set of connections to perform tables to find join
 	 */
-	private List<ConnectionDesc> buildJoinArrayFromSet(Set<String> toFind,
-			String baseTable) {
-		Map<String, List<ConnectionDesc>> root = new HashMap<String, List<ConnectionDesc>>();
-		root.put(baseTable, null);
-
-		List<ConnectionDesc> ret = new ArrayList<ConnectionDesc>();
-		Set<ConnectionDesc> retSet = new HashSet<ConnectionDesc>();
-		Set<String> visited = new HashSet<String>();
-
-		while (root.size() > 0 && toFind.size() > 0) {
-			Map<String, List<ConnectionDesc>> newRoot = new HashMap<String, List<ConnectionDesc>>();
-			Iterator<ConnectionDesc> connectionDescsIterator = mConnectionDescs
-					.iterator();
-			while (connectionDescsIterator.hasNext() && toFind.size() > 0) {
-				ConnectionDesc connection = connectionDescsIterator.next();
-				if (!root.containsKey(connection.tableN))
+	private static class JoinTree {
+		private static final int MAX_CACHED_JOINS = 256;
+
+		// reachable tables in order they were discovered
+		final int[] mOrder;
+		// connection used to reach table
+		final ConnectionDesc[] mVia;
+		// tables that have to be joined to reach table (with table itself)
+		final BitSet[] mPaths;
+		final ConcurrentHashMap<BitSet, JoinPlan> mJoinCache = new ConcurrentHashMap<BitSet, JoinPlan>();
+
+		JoinTree(int[] order, ConnectionDesc[] via, BitSet[] paths) {
+			mOrder = order;
+			mVia = via;
+			mPaths = paths;
+		}
+	}
+
+	private JoinTree buildJoinTree(int baseTable) {
+		int tablesCount = mTableNames.length;
+		ConnectionDesc[] via = new ConnectionDesc[tablesCount];
+		BitSet[] paths = new BitSet[tablesCount];
+		int[] order = new int[tablesCount];
+		int orderSize = 0;
+
+		BitSet basePath = new BitSet(tablesCount);
+		basePath.set(baseTable);
+		paths[baseTable] = basePath;
+
+		List<Integer> root = Collections.singletonList(baseTable);
+		while (root.size() > 0) {
+			List<Integer> newRoot = new ArrayList<Integer>();
+			for (ConnectionDesc connection : mConnectionDescs) {
+				int tableN = mTableIndexes.get(connection.tableN);
+				int table1 = mTableIndexes.get(connection.table1);
+				if (!root.contains(tableN))
 					continue;
-				if (visited.contains(connection.table1)) {
+				if (paths[table1] != null)
 					continue;
-				}
-				List<ConnectionDesc> descTree = root.get(connection.tableN);
-				visited.add(connection.table1);
-				if (toFind.contains(connection.table1)) {
-					toFind.remove(connection.table1);
-					if (descTree != null) {
-						for (ConnectionDesc connectionDesc : descTree) {
-							if (retSet.contains(connectionDesc))
-								continue;
-							ret.add(connectionDesc);
-							retSet.add(connectionDesc);
-						}
-					}
-					if (!retSet.contains(connection)) {
-						ret.add(connection);
-						retSet.add(connection);
-					}
-					newRoot.put(connection.table1, null);
-				} else {
-					ArrayList<ConnectionDesc> newDescTree = new ArrayList<ConnectionDesc>();
-					if (descTree != null)
-						newDescTree.addAll(descTree);
-					newDescTree.add(connection);
-					newRoot.put(connection.table1, newDescTree);
-				}
+				BitSet path = (BitSet) paths[tableN].clone();
+				path.set(table1);
+				paths[table1] = path;
+				via[table1] = connection;
+				order[orderSize++] = table1;
+				newRoot.add(table1);
 			}
 			root = newRoot;
 		}
-		if (toFind.size() != 0)
-			throw new RuntimeException("Could not find connection between 1:N"
-					+ toFind + ":" + baseTable);
-		return ret;
+		return new JoinTree(Arrays.copyOf(order, orderSize), via, paths);
 	}
 
+	/**
+	 * Joins needed by projection and information if result have to be grouped
+	 * by id
+	 */
+	public static class JoinPlan {
+		private final String mJoins;
+		private final boolean mNeedsGroupBy;
+
+		JoinPlan(String joins, boolean needsGroupBy) {
+			mJoins = joins;
+			mNeedsGroupBy = needsGroupBy;
+		}
+
+		public String getJoins() {
+			return mJoins;
+		}
+
+		/**
+		 * @return true if join can return more than one row for one base row
+		 *         or projection contains aggregate
+		 */
+		public boolean needsGroupBy() {
+			return mNeedsGroupBy;
+		}
+	}
+
+	private static final JoinPlan NO_JOINS = new JoinPlan("", false);
+	private static final JoinPlan NO_JOINS_AGGREGATE = new JoinPlan("", true);
+
 	public void addJoins(String baseTable, StringBuilder sb, String[] projection) {
-		Set<String> tables = new HashSet<String>();
+		sb.append(getJoinPlan(baseTable, projection).getJoins());
+	}
+
+	/**
+	 * Return all joins that have to be processed to get fields from projection
+	 * even if there are no direct connection to base table.
+	 */
+	public JoinPlan getJoinPlan(String baseTable, String[] projection) {
+		Integer baseIndex = mTableIndexes.get(baseTable);
+		if (baseIndex == null)
+			throw new IllegalArgumentException("Unkonwon table " + baseTable);
+
+		int tablesCount = mTableNames.length;
+		// one more bit for aggregate fields
+		BitSet tables = new BitSet(tablesCount + 1);
 		for (String field : projection) {
 			if (BaseColumns._ID.equals(field))
 				continue;
-			String string = mFields.get(field);
-			if (string == null)
+			Integer table = mFieldTableIndexes.get(field);
+			if (table == null)
 				throw new IllegalArgumentException("Could not found field "
 						+ field + "in contract");
-			tables.add(string);
+			tables.set(table);
+			if (mAggregateFields.contains(field)) {
+				tables.set(tablesCount);
+			}
 		}
-		tables.remove(baseTable);
+		tables.clear(baseIndex);
+		boolean aggregate = tables.get(tablesCount);
+		if (tables.isEmpty())
+			return NO_JOINS;
+		if (aggregate && tables.cardinality() == 1)
+			return NO_JOINS_AGGREGATE;
 
-		List<ConnectionDesc> tablesJoin = buildJoinArrayFromSet(tables,
-				baseTable);
+		JoinTree joinTree = mJoinTrees[baseIndex];
+		JoinPlan joinPlan = joinTree.mJoinCache.get(tables);
+		if (joinPlan != null)
+			return joinPlan;
 
-		for (ConnectionDesc desc : tablesJoin) {
+		BitSet required = new BitSet(tablesCount);
+		for (int table = tables.nextSetBit(0); table >= 0 && table < tablesCount; table = tables
+				.nextSetBit(table + 1)) {
+			BitSet path = joinTree.mPaths[table];
+			if (path == null)
+				throw new RuntimeException("Could not find connection between 1:N"
+						+ mTableNames[table] + ":" + baseTable);
+			required.or(path);
+		}
+		StringBuilder sb = new StringBuilder();
+		boolean mayFanOut = false;
+		for (int table : joinTree.mOrder) {
+			if (!required.get(table))
+				continue;
+			ConnectionDesc desc = joinTree.mVia[table];
+			// joining by unique field of "1" side never duplicates rows
+			mayFanOut |= !isUniqueField(desc.table1, desc.field1);
 			sb.append(" LEFT OUTER JOIN ");
 			sb.append(desc.table1);
 			sb.append(" ON (");
@@ -296,6 +910,18 @@ public class ContractFullDesc {
 			sb.append(desc.fieldN);
 			sb.append(")");
 		}
+		joinPlan = new JoinPlan(sb.toString(), mayFanOut || aggregate);
+		if (joinTree.mJoinCache.size() < JoinTree.MAX_CACHED_JOINS) {
+			joinTree.mJoinCache.putIfAbsent(tables, joinPlan);
+		}
+		return joinPlan;
+	}
+
+	private boolean isUniqueField(String table, String field) {
+		ContractDesc contractDesc = mTables.get(table);
+		return field.equals(contractDesc.getIdField())
+				|| (!contractDesc.mIsFts && field.equals(contractDesc
+						.getGuidField()));
 	}
 	
 	private Map<String, String> getQueryParameters(Uri uri) {
@@ -327,130 +953,120 @@ public class ContractFullDesc {
 	        	argEnd = end;
 	        }
 
-	        String name = query.substring(start, separator);
-	        String argument = query.substring(argStart, argEnd);
-	        entries.put(Uri.decode(name), Uri.decode(argument));
+	        String name = Uri.decode(query.substring(start, separator));
+	        if (!RESERVED_PARAMETERS.contains(name)) {
+	            String argument = query.substring(argStart, argEnd);
+	            entries.put(name, Uri.decode(argument));
+	        }
 
 	        // Move start to end of name.
 	        start = end + 1;
 	    } while (start < query.length());
 
+	    if (entries.isEmpty()) {
+	        return Collections.emptyMap();
+	    }
 	    return Collections.unmodifiableMap(entries);
 	}
 
 	public SelectionVars getSelectionVarsFromUri(Uri uri) {
-		String insertField = null;
-		String insertValue = null;
-		String table;
-		ContractDesc contractDesc;
-		Collection<String> selectionArgs = new ArrayList<String>();
-		int toClose = 0;
-		StringBuilder where = new StringBuilder();
 		List<String> pathSegments = uri.getPathSegments();
-		int currentPathSegment = pathSegments.size() - 1;
-		
-		Map<String, String> parameterNames = getQueryParameters(uri);
-		for (Entry<String, String> entry : parameterNames.entrySet()) {
-            key = entry.getKey();
-            if (TextUtils.equals("limit", key)) {
-                continue;
-            }
-            if (toClose > 0) {
-                where.append(" AND ");
-            }
-			where.append("((");
-            where.append(key);
-			where.append(" = ? )");
-			toClose += 1;
-			selectionArgs.add(entry.getValue());
-		}
-
-		if (pathSegments.size() == 0)
+		int size = pathSegments.size();
+		if (size == 0)
 			throw new IllegalArgumentException("Unknown URI " + uri);
 
-		if (lastSegmentIsId(pathSegments)) {
-			String id = pathSegments.get(currentPathSegment--);
-			table = pathSegments.get(currentPathSegment--);
-			contractDesc = mTables.get(table);
-			if (contractDesc == null)
-				throw new IllegalArgumentException("Unknown URI " + uri
-						+ " not known table: " + table);
-			if (toClose > 0) {
-				where.append(" AND ");
-			}
-			where.append("((");
-			where.append(contractDesc.getIdField());
-			where.append(" == ? )");
-			toClose += 1;
-
-			selectionArgs.add(id);
-		} else {
-			table = pathSegments.get(currentPathSegment--);
-			contractDesc = mTables.get(table);
-			if (contractDesc == null)
-				throw new IllegalArgumentException("Unknown URI " + uri
-						+ " not known table: " + table);
-		}
-
-		String tableN = table;
-		if (currentPathSegment >= 0) {
-			String id = pathSegments.get(currentPathSegment--);
-			String table1 = pathSegments.get(currentPathSegment--);
-			ContractDesc contractDesc1 = mTables.get(table1);
-			if (contractDesc1 == null)
-				throw new IllegalArgumentException("Unknown URI " + uri
-						+ " not known table: " + table1);
+		// only last table and its parent are taken into account
+		int start = size > 4 ? size - (size % 2 == 0 ? 4 : 3) : 0;
+		String table = pathSegments.get(start);
+		RouteNode node = mRoutes.get(table);
+		if (node == null)
+			throw new IllegalArgumentException("Unknown URI " + uri
+					+ " not known table: " + table);
 
-			ConnectionDesc connection = findConnection(table1, tableN);
-			if (connection == null)
+		Route route;
+		String parentId = null;
+		String id = null;
+		switch (size - start) {
+		case 1:
+			route = node.mDirRoute;
+			break;
+		case 2:
+			route = node.mItemRoute;
+			id = pathSegments.get(start + 1);
+			break;
+		default:
+			parentId = pathSegments.get(start + 1);
+			String tableN = pathSegments.get(start + 2);
+			RouteNode childNode = node.mChildren.get(tableN);
+			if (childNode == null) {
+				if (!mTables.containsKey(tableN))
+					throw new IllegalArgumentException("Unknown URI " + uri
+							+ " not known table: " + tableN);
 				throw new IllegalArgumentException("Unknown URI " + uri
 						+ " could not connect" + tableN + " with table "
-						+ table1);
-
-			if (toClose > 0) {
-				where.append(" AND ");
+						+ table);
 			}
-			
-			if (contractDesc1.getIdField().equals(connection.field1)) {
-				// if field that we using for join is same as "id" we do not
-				// have to ask database for value to create join
-				where.append("(");
-				where.append(connection.fieldN);
-				where.append(" == ? ");
-				insertField = connection.fieldN;
-				insertValue = id;
+			if (size - start == 3) {
+				route = childNode.mDirRoute;
 			} else {
-				where.append(connection.fieldN);
-				where.append(" IN ( SELECT ");
-				where.append(connection.field1);
-				where.append(" FROM ");
-				where.append(connection.table1);
-				where.append(" WHERE (");
-				where.append(contractDesc1.getIdField());
-				where.append(" = ? )");
+				route = childNode.mItemRoute;
+				id = pathSegments.get(start + 3);
 			}
-			selectionArgs.add(id);
-			toClose += 1;
-			tableN = table1;
-		}
-		for (;toClose > 0; toClose--) {
-			where.append(")");
+			break;
 		}
-		String selection = where.toString();
-		if (TextUtils.isEmpty(where))
-			selection = null;
-		return new SelectionVars(table, selection, selectionArgs, insertField,
-				insertValue, contractDesc);
+		return route.getSelectionVars(getQueryParameters(uri), parentId, id);
 	}
 
-	private ConnectionDesc findConnection(String table1, String tableN) {
+	/**
+	 * Build routing trie for every supported uri shape: /t, /t/#, /p/#/t and
+	 * /p/#/t/#
+	 */
+	private void compileRoutes() {
+		Map<String, RouteNode> routes = new HashMap<String, RouteNode>();
+		for (ContractDesc contractDesc : mTables.values()) {
+			String table = contractDesc.getTableName();
+			RouteNode node = new RouteNode();
+			node.mDirRoute = new Route(table, contractDesc, false, null, null);
+			node.mItemRoute = new Route(table + "/#", contractDesc, true,
+					null, null);
+			routes.put(table, node);
+		}
 		for (ConnectionDesc connection : mConnectionDescs) {
-			if (!connection.table1.equals(table1)
-					|| !connection.tableN.equals(tableN))
+			RouteNode parentNode = routes.get(connection.table1);
+			if (parentNode.mChildren.containsKey(connection.tableN))
 				continue;
-			return connection;
+			ContractDesc contractDesc1 = mTables.get(connection.table1);
+			ContractDesc contractDescN = mTables.get(connection.tableN);
+			String name = connection.table1 + "/#/" + connection.tableN;
+			RouteNode node = new RouteNode();
+			node.mDirRoute = new Route(name, contractDescN, false,
+					contractDesc1, connection);
+			node.mItemRoute = new Route(name + "/#", contractDescN, true,
+					contractDesc1, connection);
+			parentNode.mChildren.put(connection.tableN, node);
+		}
+		List<Route> routeList = new ArrayList<Route>();
+		collectRoutes(routes.values(), routeList);
+		mRoutes = routes;
+		mRouteList = Collections.unmodifiableList(routeList);
+	}
+
+	private static void collectRoutes(Collection<RouteNode> nodes,
+			List<Route> routeList) {
+		for (RouteNode node : nodes) {
+			node.mDirRoute.mIndex = routeList.size();
+			routeList.add(node.mDirRoute);
+			node.mItemRoute.mIndex = routeList.size();
+			routeList.add(node.mItemRoute);
+			collectRoutes(node.mChildren.values(), routeList);
 		}
-		return null;
+	}
+
+	/**
+	 * @return all uri shapes supported by contract
+	 */
+	public List<Route> getRoutes() {
+		return mRouteList;
 	}
 
 	private static boolean lastSegmentIsId(List<String> pathSegments) {
@@ -509,6 +1125,10 @@ public class ContractFullDesc {
 			}
 			return true;
 		}
+		@Override
+		public int hashCode() {
+			return 31 * table.hashCode() + field.hashCode();
+		}
 	}
 	
 	public void sqlCreateAll(SQLiteDatabase db) {
@@ -533,8 +1153,17 @@ public class ContractFullDesc {
 			if (guidField != null && guidField.equals(tableField.field)) {
 				continue;
 			}
-			DataHelper.createBinaryUniqueIndexIfNotExist(tableField.table,
-					tableField.field);
+			if (contractDesc.isIndexPrefix(tableField.field)) {
+				continue;
+			}
+			// many rows of N table have the same key, so index is not unique
+			db.execSQL(DataHelper.createIndexIfNotExist(tableField.table,
+					tableField.field));
+		}
+		for (AggregateDesc aggregateDesc : mAggregateDescs) {
+			for (String sql : aggregateDesc.sqlCreateTriggers()) {
+				db.execSQL(sql);
+			}
 		}
 	}
 	
@@ -36,4 +36,35 @@ public class DataHelper {
 				indexName, tableName, columnName);
 	}
 	
+	public static String createIndexIfNotExist(String tableName,
+			String columnName) {
+		String indexName = String.format("%s_%s", tableName, columnName);
+		return createIndexIfNotExist(indexName, tableName, false, null,
+				columnName);
+	}
+	
+	/**
+	 * @param where
+	 *            condition of partial index or null (partial indexes need
+	 *            SQLite 3.8.0, Android 5.0)
+	 */
+	public static String createIndexIfNotExist(String indexName,
+			String tableName, boolean unique, String where, String... columnNames) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(unique ? "CREATE UNIQUE INDEX" : "CREATE INDEX");
+		sb.append(" IF NOT EXISTS ").append(indexName);
+		sb.append(" ON ").append(tableName).append(" (");
+		for (int i = 0; i < columnNames.length; ++i) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(columnNames[i]);
+		}
+		sb.append(")");
+		if (where != null) {
+			sb.append(" WHERE ").append(where);
+		}
+		return sb.toString();
+	}
+	
 }
@@ -39,6 +39,10 @@ class GuidOnInsertTrigger implements OnInsertTrigger {
 		if (!newValues.containsKey(mGuid)) {
 			return null;
 		}
+		if (queryInterface instanceof BaseContentProvider) {
+			return ((BaseContentProvider) queryInterface).insertWithGuid(uri,
+					selectionVars, newValues, mGuid, this);
+		}
 		String guid = newValues.getAsString(mGuid);
 
 		String idField = contractDesc.getIdField();
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Guid to id map of rows that are going to be inserted by one applyBatch.
+ *
+ * Guids are resolved by chunked IN (...) queries before the first operation
+ * is applied, so inserting row with guid does not have to look for existing
+ * row again. Guid that was prefetched but is not in database is remembered
+ * too (with null id) so it can be inserted without lookup.
+ */
+class GuidPrefetch {
+
+	// SQLite does not allow more than 999 arguments
+	private static final int CHUNK_SIZE = 500;
+
+	private final Map<String, Map<String, Long>> mTables = new HashMap<String, Map<String, Long>>();
+
+	public void prefetch(SQLiteDatabase db, String table, String idField,
+			String guidField, Collection<String> guids) {
+		Map<String, Long> ids = mTables.get(table);
+		if (ids == null) {
+			ids = new HashMap<String, Long>();
+			mTables.put(table, ids);
+		}
+		List<String> chunk = new ArrayList<String>(CHUNK_SIZE);
+		for (String guid : guids) {
+			if (ids.containsKey(guid)) {
+				continue;
+			}
+			ids.put(guid, null);
+			chunk.add(guid);
+			if (chunk.size() == CHUNK_SIZE) {
+				queryChunk(db, table, idField, guidField, chunk, ids);
+				chunk.clear();
+			}
+		}
+		if (chunk.size() > 0) {
+			queryChunk(db, table, idField, guidField, chunk, ids);
+		}
+	}
+
+	private static void queryChunk(SQLiteDatabase db, String table,
+			String idField, String guidField, List<String> guids,
+			Map<String, Long> ids) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("SELECT ").append(guidField).append(", ").append(idField);
+		sb.append(" FROM ").append(table);
+		sb.append(" WHERE ").append(guidField).append(" IN (");
+		for (int i = 0; i < guids.size(); ++i) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append("?");
+		}
+		sb.append(")");
+		Cursor cursor = db.rawQuery(sb.toString(),
+				guids.toArray(new String[guids.size()]));
+		try {
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor
+					.moveToNext()) {
+				ids.put(cursor.getString(0), cursor.getLong(1));
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * @return true if it is known if guid exist in table
+	 */
+	public boolean isKnown(String table, String guid) {
+		Map<String, Long> ids = mTables.get(table);
+		return ids != null && ids.containsKey(guid);
+	}
+
+	/**
+	 * @return id of row with guid or null if row does not exist
+	 */
+	public Long getId(String table, String guid) {
+		Map<String, Long> ids = mTables.get(table);
+		return ids == null ? null : ids.get(guid);
+	}
+
+	public void put(String table, String guid, long id) {
+		Map<String, Long> ids = mTables.get(table);
+		if (ids != null) {
+			ids.put(guid, id);
+		}
+	}
+
+	/**
+	 * Forget everything about table, i.e. when rows are deleted
+	 */
+	public void invalidate(String table) {
+		mTables.remove(table);
+	}
+
+	public void invalidateAll() {
+		mTables.clear();
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Finds queries that could use an index by looking at EXPLAIN QUERY PLAN of
+ * every distinct query shape once.
+ *
+ * Shape is generated sql with "?" in place of arguments, so it contains
+ * table, joins, where columns and order. Shapes that scan whole table
+ * although their where or order could use an index, or that sort by
+ * temporary b-tree, are logged and remembered with index that would help.
+ * Listing of whole table without where and order is not reported.
+ *
+ * Plans are explained on a background thread, so query does not wait for
+ * them. Enable it by {@link BaseContentProvider#isIndexAdvisorEnabled()},
+ * i.e. only in debug builds.
+ */
+public class IndexAdvisor {
+
+	private static final String TAG = "IndexAdvisor";
+
+	private static final Pattern SCAN_PATTERN = Pattern
+			.compile("^SCAN (?:TABLE )?(\\w+)(.*)$");
+	private static final Pattern TEMP_B_TREE_PATTERN = Pattern
+			.compile("^USE TEMP B-TREE FOR (.*)$");
+	private static final Pattern IDENTIFIER_PATTERN = Pattern
+			.compile("(?:[A-Za-z_][A-Za-z0-9_]*\\.)?([A-Za-z_][A-Za-z0-9_]*)");
+
+	public static class Advice {
+		private final String mSql;
+		private final List<String> mProblems;
+		private final List<String> mSuggestedIndexes;
+
+		Advice(String sql, List<String> problems,
+				List<String> suggestedIndexes) {
+			mSql = sql;
+			mProblems = problems;
+			mSuggestedIndexes = suggestedIndexes;
+		}
+
+		public String getSql() {
+			return mSql;
+		}
+
+		/**
+		 * @return plan lines with full scans and temporary b-trees
+		 */
+		public List<String> getProblems() {
+			return mProblems;
+		}
+
+		/**
+		 * @return CREATE INDEX statements that could fix problems, empty if
+		 *         no indexable column was found
+		 */
+		public List<String> getSuggestedIndexes() {
+			return mSuggestedIndexes;
+		}
+
+		@Override
+		public String toString() {
+			return mSql + "\n  problems: " + mProblems + "\n  suggested: "
+					+ mSuggestedIndexes;
+		}
+	}
+
+	private final ContractFullDesc mFullDesc;
+	private final int mMaxShapes;
+	private final Set<String> mShapes = new LinkedHashSet<String>();
+	private final List<Advice> mAdvices = new ArrayList<Advice>();
+	// explain never delays query that found new shape
+	private final Executor mExecutor = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, TAG);
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+
+	IndexAdvisor(ContractFullDesc fullDesc, int maxShapes) {
+		mFullDesc = fullDesc;
+		mMaxShapes = maxShapes;
+	}
+
+	/**
+	 * Explain query on background thread if its shape was not checked before
+	 * 
+	 * @param sql
+	 *            generated sql
+	 * @param selectionArgs
+	 *            arguments of sql, needed to explain it
+	 * @param selection
+	 *            where clause used to find columns for index
+	 * @param sortOrder
+	 *            order used to find columns for index
+	 */
+	void check(final SQLiteDatabase db, final String sql,
+			String[] selectionArgs, final String selection,
+			final String sortOrder) {
+		synchronized (this) {
+			if (mShapes.size() >= mMaxShapes || !mShapes.add(sql)) {
+				return;
+			}
+		}
+		final String[] args = selectionArgs == null ? null : selectionArgs
+				.clone();
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					explain(db, sql, args, selection, sortOrder);
+				} catch (RuntimeException e) {
+					// i.e. database was closed, advisor is only a hint
+					Log.w(TAG, "Could not explain " + sql, e);
+				}
+			}
+		});
+	}
+
+	private void explain(SQLiteDatabase db, String sql, String[] selectionArgs,
+			String selection, String sortOrder) {
+		List<String> problems = new ArrayList<String>();
+		Set<String> suggestedIndexes = new LinkedHashSet<String>();
+		Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql,
+				selectionArgs);
+		try {
+			int detailColumn = cursor.getColumnIndexOrThrow("detail");
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor
+					.moveToNext()) {
+				String detail = cursor.getString(detailColumn);
+				Matcher scan = SCAN_PATTERN.matcher(detail);
+				if (scan.matches() && !scan.group(2).contains("USING")
+						&& mFullDesc.getContractDesc(scan.group(1)) != null) {
+					// full listing is expected, scan is a problem only if
+					// where or order could use index
+					String index = suggestIndex(scan.group(1), selection,
+							sortOrder);
+					if (index != null) {
+						problems.add(detail);
+						suggestedIndexes.add(index);
+					}
+				} else if (TEMP_B_TREE_PATTERN.matcher(detail).matches()) {
+					// table is searched by index but sorted in memory
+					boolean indexable = false;
+					for (String table : findTables(sortOrder)) {
+						String index = suggestIndex(table, selection,
+								sortOrder);
+						if (index != null) {
+							suggestedIndexes.add(index);
+							indexable = true;
+						}
+					}
+					if (indexable) {
+						problems.add(detail);
+					}
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		if (problems.isEmpty()) {
+			return;
+		}
+		Advice advice = new Advice(sql, problems, new ArrayList<String>(
+				suggestedIndexes));
+		synchronized (this) {
+			mAdvices.add(advice);
+		}
+		Log.w(TAG, advice.toString());
+	}
+
+	/**
+	 * Wait until all queries checked so far are explained, for tests
+	 */
+	void awaitExplained() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		});
+		latch.await();
+	}
+
+	private Collection<String> findTables(String sql) {
+		Set<String> tables = new LinkedHashSet<String>();
+		if (sql == null) {
+			return tables;
+		}
+		Matcher matcher = IDENTIFIER_PATTERN.matcher(sql);
+		while (matcher.find()) {
+			String table = mFullDesc.getTableForField(matcher.group(1));
+			if (table != null) {
+				tables.add(table);
+			}
+		}
+		return tables;
+	}
+
+	/**
+	 * Index on columns of table used in where (in order of appearance) and
+	 * then in order by
+	 */
+	private String suggestIndex(String table, String selection,
+			String sortOrder) {
+		Collection<String> fields = mFullDesc.getContractDesc(table)
+				.getFieldsWithId();
+		Set<String> columns = new LinkedHashSet<String>();
+		addColumns(columns, fields, selection);
+		addColumns(columns, fields, sortOrder);
+		if (columns.isEmpty()) {
+			return null;
+		}
+		String[] columnsArray = columns.toArray(new String[columns.size()]);
+		return DataHelper.createIndexIfNotExist(table + "_idx_"
+				+ TextUtils.join("_", columnsArray), table, false, null,
+				columnsArray);
+	}
+
+	private static void addColumns(Set<String> columns,
+			Collection<String> fields, String sql) {
+		if (sql == null) {
+			return;
+		}
+		Matcher matcher = IDENTIFIER_PATTERN.matcher(sql);
+		while (matcher.find()) {
+			String identifier = matcher.group(1);
+			if (fields.contains(identifier)) {
+				columns.add(identifier);
+			}
+		}
+	}
+
+	/**
+	 * @return queries with problems found so far
+	 */
+	public synchronized List<Advice> getAdvices() {
+		return Collections.unmodifiableList(new ArrayList<Advice>(mAdvices));
+	}
+
+	/**
+	 * @return number of distinct query shapes checked
+	 */
+	public synchronized int getShapesCount() {
+		return mShapes.size();
+	}
+
+	/**
+	 * Forget checked shapes and advices, i.e. after adding indexes
+	 */
+	public synchronized void reset() {
+		mShapes.clear();
+		mAdvices.clear();
+	}
+}
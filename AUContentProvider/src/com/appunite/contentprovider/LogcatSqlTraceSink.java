@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map.Entry;
+
+import android.content.ContentValues;
+import android.util.Log;
+
+/**
+ * Prints every statement to logcat, it is used by default in debug builds
+ */
+public class LogcatSqlTraceSink implements SqlTraceSink {
+
+	private final String mTag;
+
+	public LogcatSqlTraceSink(String tag) {
+		mTag = tag;
+	}
+
+	@Override
+	public void onStatement(String sql, ContentValues values,
+			String[] selectionArgs, long durationNanos) {
+		Log.v(mTag, format(sql, values, selectionArgs, durationNanos));
+	}
+
+	@Override
+	public void dump(PrintWriter writer) {
+	}
+
+	static String format(String sql, ContentValues values,
+			String[] selectionArgs, long durationNanos) {
+		StringBuilder sb = new StringBuilder(sql);
+		if (values != null && values.size() > 0) {
+			sb.append(", Values: ");
+			boolean next = false;
+			for (Entry<String, Object> entry : values.valueSet()) {
+				if (next) {
+					sb.append(", ");
+				}
+				next = true;
+				sb.append(entry.getKey()).append("=").append(entry.getValue());
+			}
+		}
+		if (selectionArgs != null && selectionArgs.length > 0) {
+			sb.append(", Selection args: ");
+			for (int i = 0; i < selectionArgs.length; ++i) {
+				if (i > 0) {
+					sb.append(", ");
+				}
+				sb.append(selectionArgs[i]);
+			}
+		}
+		sb.append(String.format(Locale.US, " (%.3f ms)",
+				durationNanos / 1000000.0));
+		return sb.toString();
+	}
+}
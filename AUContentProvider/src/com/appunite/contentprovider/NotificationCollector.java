@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+/**
+ * Collects change notifications while a transaction is open on the current
+ * thread.
+ *
+ * Every changed row uri is remembered once per table, and all of them are sent
+ * after the outermost transaction commits. When rows of table are not known
+ * or there are too many of them, only table uri is sent - it notifies
+ * observers of all rows. If the transaction is rolled back collected uris are
+ * dropped because nothing changed in database.
+ */
+class NotificationCollector {
+
+	// table uri to changed row uris, null if whole table have to be notified
+	private final Map<Uri, Set<Uri>> mUris = new LinkedHashMap<Uri, Set<Uri>>();
+	private final int mMaxRowUris;
+	private int mDepth = 0;
+
+	/**
+	 * @param maxRowUris
+	 *            number of row uris of one table above which table uri is sent
+	 *            instead
+	 */
+	public NotificationCollector(int maxRowUris) {
+		mMaxRowUris = maxRowUris;
+	}
+
+	public void begin() {
+		mDepth += 1;
+	}
+
+	public boolean isActive() {
+		return mDepth > 0;
+	}
+
+	/**
+	 * @param tableUri
+	 *            uri of changed table
+	 * @param rowUri
+	 *            uri of changed row or null if changed rows are not known
+	 * @return false if there is no open transaction and caller should notify
+	 *         immediately
+	 */
+	public boolean add(Uri tableUri, Uri rowUri) {
+		if (mDepth == 0) {
+			return false;
+		}
+		if (!mUris.containsKey(tableUri)) {
+			mUris.put(tableUri, new LinkedHashSet<Uri>());
+		}
+		Set<Uri> rowUris = mUris.get(tableUri);
+		if (rowUris == null) {
+			// whole table is already notified
+			return true;
+		}
+		if (rowUri == null || rowUris.size() >= mMaxRowUris
+				&& !rowUris.contains(rowUri)) {
+			mUris.put(tableUri, null);
+		} else {
+			rowUris.add(rowUri);
+		}
+		return true;
+	}
+
+	/**
+	 * Send notifications collected so far, used when transaction was partially
+	 * committed (i.e. after yield)
+	 * 
+	 * @return number of sent notifications
+	 */
+	public int flush(ContentResolver contentResolver) {
+		int sent = 0;
+		for (Entry<Uri, Set<Uri>> entry : mUris.entrySet()) {
+			Set<Uri> rowUris = entry.getValue();
+			if (rowUris == null) {
+				contentResolver.notifyChange(entry.getKey(), null);
+				sent += 1;
+				continue;
+			}
+			for (Uri rowUri : rowUris) {
+				contentResolver.notifyChange(rowUri, null);
+			}
+			sent += rowUris.size();
+		}
+		mUris.clear();
+		return sent;
+	}
+
+	/**
+	 * @param contentResolver
+	 *            resolver to notify or null if transaction was rolled back
+	 * @return number of sent notifications
+	 */
+	public int end(ContentResolver contentResolver) {
+		if (mDepth == 0) {
+			throw new IllegalStateException("Notification collector not started");
+		}
+		mDepth -= 1;
+		if (contentResolver == null) {
+			mUris.clear();
+			return 0;
+		}
+		if (mDepth == 0) {
+			return flush(contentResolver);
+		}
+		return 0;
+	}
+}
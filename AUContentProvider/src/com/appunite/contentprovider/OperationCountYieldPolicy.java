@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+/**
+ * Yield after number of operations, default policy of
+ * {@link BaseContentProvider}
+ */
+public class OperationCountYieldPolicy implements YieldPolicy {
+
+	private final int mMinOperations;
+	private final int mForceOperations;
+	private final int mMaxOperations;
+	private final long mSleepAfterYieldMillis;
+
+	public OperationCountYieldPolicy() {
+		this(250, 400, 500, 4000);
+	}
+
+	/**
+	 * @param minOperations
+	 *            yield at first yield allowed operation after this number of
+	 *            operations
+	 * @param forceOperations
+	 *            yield even if operation does not allow it after this number
+	 *            of operations
+	 * @param maxOperations
+	 *            fail if there was no yield point after this number of
+	 *            operations, see
+	 *            {@link YieldPolicy#getMaxOperationsPerYieldPoint()}
+	 * @param sleepAfterYieldMillis
+	 *            time to wait for other threads after yield
+	 */
+	public OperationCountYieldPolicy(int minOperations, int forceOperations,
+			int maxOperations, long sleepAfterYieldMillis) {
+		mMinOperations = minOperations;
+		mForceOperations = forceOperations;
+		mMaxOperations = maxOperations;
+		mSleepAfterYieldMillis = sleepAfterYieldMillis;
+	}
+
+	@Override
+	public boolean shouldYield(int operations, long millis,
+			boolean yieldAllowed) {
+		return operations > mMinOperations && yieldAllowed
+				|| operations > mForceOperations;
+	}
+
+	@Override
+	public int getMaxOperationsPerYieldPoint() {
+		return mMaxOperations;
+	}
+
+	@Override
+	public long getSleepAfterYieldMillis() {
+		return mSleepAfterYieldMillis;
+	}
+}
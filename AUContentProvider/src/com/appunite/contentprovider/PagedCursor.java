@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+/**
+ * Cursor that reads rows of query in pages when they are needed instead of
+ * filling whole CursorWindow with all rows.
+ *
+ * {@link AbstractCursor} needs count on first move, so in
+ * {@link CountMode#EXACT} mode rows are counted by separate query right away
+ * unless all of them fit in first read pages. Use {@link CountMode#ESTIMATED}
+ * to avoid counting.
+ *
+ * Pages are read by keyset pagination of provider (see {@link Pagination}):
+ * next page is the query of rows after sort key and id of last row of
+ * previous page, so with index on (sort column, id) every page costs the same
+ * as the first one. Sort order has to be usable by keyset pagination. Keys of
+ * page starts are remembered, so page that was read before is read again
+ * directly. A few following pages are read with needed page and last used
+ * pages are kept in memory. Pages read at different time could see different
+ * data if database changes, but cursor is notified about changes like every
+ * other cursor and should be reloaded then.
+ */
+public class PagedCursor extends AbstractCursor {
+
+	public enum CountMode {
+		/**
+		 * Count is computed by "SELECT count(*)" on first move, rows are not
+		 * copied
+		 */
+		EXACT,
+		/**
+		 * Count is number of rows known to exist: rows read so far and one
+		 * more row if there are more. It grows when cursor is moved to the
+		 * last known row and becomes exact when last row was read, so it is
+		 * never bigger than real count. Good for endless lists in the same
+		 * process; clients that read count once (i.e. other processes) see
+		 * only rows known at that time.
+		 */
+		ESTIMATED
+	}
+
+	public static class Options {
+		private int mPageSize = 100;
+		private int mPrefetchPages = 1;
+		private int mMaxCachedPages = 8;
+		private CountMode mCountMode = CountMode.EXACT;
+
+		public Options setPageSize(int pageSize) {
+			if (pageSize <= 0)
+				throw new IllegalArgumentException("pageSize <= 0");
+			mPageSize = pageSize;
+			return this;
+		}
+
+		/**
+		 * @param prefetchPages
+		 *            number of pages read together with needed page
+		 */
+		public Options setPrefetchPages(int prefetchPages) {
+			if (prefetchPages < 0)
+				throw new IllegalArgumentException("prefetchPages < 0");
+			mPrefetchPages = prefetchPages;
+			return this;
+		}
+
+		public Options setMaxCachedPages(int maxCachedPages) {
+			if (maxCachedPages <= 0)
+				throw new IllegalArgumentException("maxCachedPages <= 0");
+			mMaxCachedPages = maxCachedPages;
+			return this;
+		}
+
+		public Options setCountMode(CountMode countMode) {
+			mCountMode = countMode;
+			return this;
+		}
+	}
+
+	/**
+	 * Sort key and id of last row of previous page
+	 */
+	private static class PageKey {
+		final Object mSortKey;
+		final long mId;
+
+		PageKey(Object sortKey, long id) {
+			mSortKey = sortKey;
+			mId = id;
+		}
+	}
+
+	private final BaseContentProvider mProvider;
+	private final SQLiteDatabase mDb;
+	private final String mCountSql;
+	private final String[] mCountArgs;
+	private final Uri mUri;
+	// projection with id and sort field
+	private final String[] mQueryProjection;
+	private final String mSelection;
+	private final String[] mSelectionArgs;
+	private final String mSortOrder;
+	private final String mIdField;
+	private final String mSortField;
+	private final int mVisibleColumns;
+	private final Options mOptions;
+	private final Map<Integer, Object[][]> mPages;
+	// keys of starts of pages, null for first page
+	private final List<PageKey> mPageKeys = new ArrayList<PageKey>();
+	private String[] mColumnNames;
+	// number of rows or -1 if not known
+	private int mCount = -1;
+	// rows known to exist (with one row after last read page), used by
+	// estimated count
+	private int mKnownRows = 0;
+	private Object[] mRow;
+
+	/**
+	 * @param sql
+	 *            whole query, used only to count rows
+	 * @param countArgs
+	 *            arguments of sql
+	 * @param uri
+	 *            uri of query, without pagination parameters
+	 * @param selection
+	 *            selection of query, without selection of uri
+	 */
+	PagedCursor(BaseContentProvider provider, SQLiteDatabase db, String sql,
+			String[] countArgs, Uri uri, String[] projection,
+			String selection, String[] selectionArgs, String sortOrder,
+			String idField, Options options) {
+		mProvider = provider;
+		mDb = db;
+		mCountSql = "SELECT count(*) FROM (" + sql + ")";
+		mCountArgs = countArgs;
+		mUri = uri;
+		mSelection = selection;
+		mSelectionArgs = selectionArgs;
+		// first page has to be sorted like next ones
+		mSortOrder = Pagination.getKeysetSortOrder(idField, sortOrder);
+		mIdField = idField;
+		String sortExpression = Pagination.getSortExpression(idField,
+				sortOrder);
+		mSortField = sortExpression == null ? null : Pagination
+				.getSortField(sortExpression);
+		if (projection == null) {
+			mQueryProjection = null;
+			mVisibleColumns = -1;
+		} else {
+			// keys are read from rows but columns added for them are hidden
+			List<String> columns = new ArrayList<String>(
+					Arrays.asList(projection));
+			if (!columns.contains(idField)) {
+				columns.add(idField);
+			}
+			if (mSortField != null && !columns.contains(mSortField)) {
+				columns.add(mSortField);
+			}
+			mQueryProjection = columns.toArray(new String[columns.size()]);
+			mVisibleColumns = projection.length;
+		}
+		mOptions = options;
+		final int maxCachedPages = options.mMaxCachedPages
+				+ options.mPrefetchPages;
+		mPages = new LinkedHashMap<Integer, Object[][]>(0, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Integer, Object[][]> eldest) {
+				return size() > maxCachedPages;
+			}
+		};
+		mPageKeys.add(null);
+		// first page gives column names and rows to show immediately
+		loadPages(0);
+	}
+
+	private void loadPages(int firstPage) {
+		int pageSize = mOptions.mPageSize;
+		int pagesCount = 1 + mOptions.mPrefetchPages;
+		int offset = firstPage * pageSize;
+		PageKey key = mPageKeys.get(firstPage);
+		Uri uri = key == null ? mUri : Pagination.after(mUri, key.mSortKey,
+				key.mId);
+		// one more row tells if there are rows after read pages
+		uri = Pagination.limit(uri, pagesCount * pageSize + 1);
+		Cursor cursor = mProvider.query(uri, mQueryProjection, mSelection,
+				mSelectionArgs, mSortOrder);
+		try {
+			if (mColumnNames == null) {
+				String[] names = cursor.getColumnNames();
+				mColumnNames = mVisibleColumns < 0 ? names : Arrays.copyOf(
+						names, mVisibleColumns);
+			}
+			int idColumn = cursor.getColumnIndexOrThrow(mIdField);
+			int sortColumn = mSortField == null ? -1 : cursor
+					.getColumnIndexOrThrow(mSortField);
+			int columns = mColumnNames.length;
+			int rows = cursor.getCount();
+			for (int page = 0; page < pagesCount; ++page) {
+				int pageRows = Math.min(pageSize, rows - page * pageSize);
+				if (pageRows <= 0) {
+					break;
+				}
+				Object[][] pageData = new Object[pageRows][];
+				for (int row = 0; row < pageRows; ++row) {
+					cursor.moveToPosition(page * pageSize + row);
+					Object[] values = new Object[columns];
+					for (int column = 0; column < columns; ++column) {
+						values[column] = readValue(cursor, column);
+					}
+					pageData[row] = values;
+				}
+				mPages.put(firstPage + page, pageData);
+				if (rows > (page + 1) * pageSize) {
+					// cursor is on last row of full page and there are more
+					PageKey nextKey = new PageKey(sortColumn < 0 ? null
+							: readValue(cursor, sortColumn),
+							cursor.getLong(idColumn));
+					int nextPage = firstPage + page + 1;
+					if (nextPage < mPageKeys.size()) {
+						mPageKeys.set(nextPage, nextKey);
+					} else {
+						mPageKeys.add(nextKey);
+					}
+				}
+			}
+			mKnownRows = Math.max(mKnownRows, offset + rows);
+			if (rows <= pagesCount * pageSize) {
+				// last row was read, so count is known
+				mCount = offset + rows;
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private static Object readValue(Cursor cursor, int column) {
+		switch (cursor.getType(column)) {
+		case Cursor.FIELD_TYPE_NULL:
+			return null;
+		case Cursor.FIELD_TYPE_INTEGER:
+			return cursor.getLong(column);
+		case Cursor.FIELD_TYPE_FLOAT:
+			return cursor.getDouble(column);
+		case Cursor.FIELD_TYPE_BLOB:
+			return cursor.getBlob(column);
+		default:
+			return cursor.getString(column);
+		}
+	}
+
+	@Override
+	public int getCount() {
+		if (mCount >= 0) {
+			return mCount;
+		}
+		if (mOptions.mCountMode == CountMode.ESTIMATED) {
+			// moving to last known row reads next pages
+			return mKnownRows;
+		}
+		mCount = (int) DatabaseUtils.longForQuery(mDb, mCountSql, mCountArgs);
+		return mCount;
+	}
+
+	/**
+	 * @return count if it is known or estimated count, never reads rows
+	 */
+	int getKnownCount() {
+		return mCount >= 0 ? mCount : mKnownRows;
+	}
+
+	@Override
+	public boolean onMove(int oldPosition, int newPosition) {
+		int page = newPosition / mOptions.mPageSize;
+		Object[][] pageData = mPages.get(page);
+		while (pageData == null) {
+			int knownPages = mPageKeys.size();
+			if (page < knownPages) {
+				loadPages(page);
+				pageData = mPages.get(page);
+				break;
+			}
+			// start of page is known after previous pages are read
+			loadPages(knownPages - 1);
+			if (mPageKeys.size() == knownPages) {
+				break;
+			}
+			pageData = mPages.get(page);
+		}
+		int row = newPosition % mOptions.mPageSize;
+		if (pageData == null || row >= pageData.length) {
+			// rows were deleted since count was computed
+			mRow = null;
+			return false;
+		}
+		mRow = pageData[row];
+		return true;
+	}
+
+	@Override
+	public String[] getColumnNames() {
+		return mColumnNames;
+	}
+
+	private Object get(int column) {
+		if (mRow == null) {
+			checkPosition();
+		}
+		return mRow[column];
+	}
+
+	@Override
+	public String getString(int column) {
+		Object value = get(column);
+		return value == null ? null : value.toString();
+	}
+
+	@Override
+	public short getShort(int column) {
+		return (short) getLong(column);
+	}
+
+	@Override
+	public int getInt(int column) {
+		return (int) getLong(column);
+	}
+
+	@Override
+	public long getLong(int column) {
+		Object value = get(column);
+		if (value == null) {
+			return 0;
+		}
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		return Long.parseLong(value.toString());
+	}
+
+	@Override
+	public float getFloat(int column) {
+		return (float) getDouble(column);
+	}
+
+	@Override
+	public double getDouble(int column) {
+		Object value = get(column);
+		if (value == null) {
+			return 0;
+		}
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		return Double.parseDouble(value.toString());
+	}
+
+	@Override
+	public byte[] getBlob(int column) {
+		Object value = get(column);
+		if (value == null || value instanceof byte[]) {
+			return (byte[]) value;
+		}
+		return value.toString().getBytes();
+	}
+
+	@Override
+	public boolean isNull(int column) {
+		return get(column) == null;
+	}
+
+	@Override
+	public int getType(int column) {
+		Object value = get(column);
+		if (value == null) {
+			return Cursor.FIELD_TYPE_NULL;
+		}
+		if (value instanceof Long) {
+			return Cursor.FIELD_TYPE_INTEGER;
+		}
+		if (value instanceof Double) {
+			return Cursor.FIELD_TYPE_FLOAT;
+		}
+		if (value instanceof byte[]) {
+			return Cursor.FIELD_TYPE_BLOB;
+		}
+		return Cursor.FIELD_TYPE_STRING;
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		mPages.clear();
+		mRow = null;
+	}
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import com.appunite.contentprovider.ContractDesc.FieldType;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.text.TextUtils;
+
+/**
+ * Paging of {@link BaseContentProvider#query(Uri, String[], String, String[], String)}
+ * by uri parameters.
+ *
+ * <ul>
+ * <li>"limit" - maximum number of rows</li>
+ * <li>"offset" - number of skipped rows, SQLite still has to read them</li>
+ * <li>"after=&lt;sortKey&gt;,&lt;id&gt;" - rows after row with given value of
+ * sort column and id. It is turned into range condition on sort column and
+ * id, so with index on (sort column, id) every page costs the same as the
+ * first one.</li>
+ * <li>"before=&lt;sortKey&gt;,&lt;id&gt;" - rows before given row. With limit
+ * they are read backwards, so limit takes rows closest to given row, and
+ * cursor returns them in requested order.</li>
+ * </ul>
+ *
+ * Keyset pagination needs sort order by one real column (optionally followed
+ * by id). Id is added to sort order as tie-breaker. Without sort order rows
+ * are sorted by id and key is only "&lt;id&gt;". Key of row with NULL in sort
+ * column is also only "&lt;id&gt;", NULL is smaller than any value as in
+ * SQLite order. Sort key is bound with type of sort column, so i.e. "10" is
+ * compared as number with INTEGER column.
+ */
+public class Pagination {
+
+	public static final String PARAM_LIMIT = "limit";
+	public static final String PARAM_OFFSET = "offset";
+	public static final String PARAM_AFTER = "after";
+	public static final String PARAM_BEFORE = "before";
+
+	private final String mSelection;
+	private final List<String> mSelectionArgs;
+	private final String mSortOrder;
+	private final String mLimit;
+	private final boolean mReversed;
+
+	private Pagination(String selection, List<String> selectionArgs,
+			String sortOrder, String limit, boolean reversed) {
+		mSelection = selection;
+		mSelectionArgs = selectionArgs;
+		mSortOrder = sortOrder;
+		mLimit = limit;
+		mReversed = reversed;
+	}
+
+	/**
+	 * Cursor that returns rows of wrapped cursor from last to first
+	 */
+	private static class ReversedCursor extends CursorWrapper {
+
+		private int mPosition = -1;
+
+		ReversedCursor(Cursor cursor) {
+			super(cursor);
+		}
+
+		@Override
+		public int getPosition() {
+			return mPosition;
+		}
+
+		@Override
+		public boolean moveToPosition(int position) {
+			int count = getCount();
+			if (position >= count) {
+				mPosition = count;
+				super.moveToPosition(-1);
+				return false;
+			}
+			if (position < 0) {
+				mPosition = -1;
+				super.moveToPosition(count);
+				return false;
+			}
+			mPosition = position;
+			return super.moveToPosition(count - 1 - position);
+		}
+
+		@Override
+		public boolean move(int offset) {
+			return moveToPosition(mPosition + offset);
+		}
+
+		@Override
+		public boolean moveToFirst() {
+			return moveToPosition(0);
+		}
+
+		@Override
+		public boolean moveToLast() {
+			return moveToPosition(getCount() - 1);
+		}
+
+		@Override
+		public boolean moveToNext() {
+			return moveToPosition(mPosition + 1);
+		}
+
+		@Override
+		public boolean moveToPrevious() {
+			return moveToPosition(mPosition - 1);
+		}
+
+		@Override
+		public boolean isFirst() {
+			return mPosition == 0 && getCount() != 0;
+		}
+
+		@Override
+		public boolean isLast() {
+			int count = getCount();
+			return count != 0 && mPosition == count - 1;
+		}
+
+		@Override
+		public boolean isBeforeFirst() {
+			return getCount() == 0 || mPosition == -1;
+		}
+
+		@Override
+		public boolean isAfterLast() {
+			int count = getCount();
+			return count == 0 || mPosition == count;
+		}
+
+		@SuppressWarnings("deprecation")
+		@Override
+		public boolean requery() {
+			mPosition = -1;
+			return super.requery();
+		}
+	}
+
+	public static Uri limit(Uri uri, int limit) {
+		return uri.buildUpon()
+				.appendQueryParameter(PARAM_LIMIT, Integer.toString(limit))
+				.build();
+	}
+
+	public static Uri offset(Uri uri, int offset) {
+		return uri.buildUpon()
+				.appendQueryParameter(PARAM_OFFSET, Integer.toString(offset))
+				.build();
+	}
+
+	/**
+	 * @param sortKey
+	 *            value of sort column of last row of previous page or null if
+	 *            it is NULL or rows are sorted only by id
+	 */
+	public static Uri after(Uri uri, Object sortKey, long id) {
+		return uri.buildUpon()
+				.appendQueryParameter(PARAM_AFTER, buildKey(sortKey, id))
+				.build();
+	}
+
+	/**
+	 * @param sortKey
+	 *            value of sort column of first row of next page or null if
+	 *            it is NULL or rows are sorted only by id
+	 */
+	public static Uri before(Uri uri, Object sortKey, long id) {
+		return uri.buildUpon()
+				.appendQueryParameter(PARAM_BEFORE, buildKey(sortKey, id))
+				.build();
+	}
+
+	private static String buildKey(Object sortKey, long id) {
+		if (sortKey == null) {
+			return Long.toString(id);
+		}
+		return sortKey + "," + id;
+	}
+
+	private static String parseNumber(Uri uri, String name) {
+		String value = uri.getQueryParameter(name);
+		if (value == null) {
+			return null;
+		}
+		long number;
+		try {
+			number = Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Wrong " + name + " in uri "
+					+ uri, e);
+		}
+		if (number < 0) {
+			throw new IllegalArgumentException("Negative " + name + " in uri "
+					+ uri);
+		}
+		// normalized, i.e. without "+" sign
+		return Long.toString(number);
+	}
+
+	/**
+	 * @param contractDesc
+	 *            queried table
+	 * @param sortOrder
+	 *            sort order of query
+	 */
+	static Pagination fromUri(Uri uri, ContractDesc contractDesc,
+			String sortOrder) {
+		String limit = uri.getQueryParameter(PARAM_LIMIT);
+		String offset = parseNumber(uri, PARAM_OFFSET);
+		if (offset != null) {
+			// SQLiteQueryBuilder accepts only "count" or "offset,count"
+			limit = parseNumber(uri, PARAM_LIMIT);
+			limit = offset + ","
+					+ (limit == null ? Long.toString(Long.MAX_VALUE) : limit);
+		}
+
+		String after = uri.getQueryParameter(PARAM_AFTER);
+		String before = uri.getQueryParameter(PARAM_BEFORE);
+		if (after == null && before == null) {
+			return new Pagination(null, null, sortOrder, limit, false);
+		}
+		if (after != null && before != null)
+			throw new IllegalArgumentException(
+					"Could not use after and before at once in uri " + uri);
+		boolean isAfter = after != null;
+		String key = isAfter ? after : before;
+		String idField = contractDesc.getIdField();
+
+		String sortExpression = getSortExpression(idField, sortOrder);
+		boolean descending = !TextUtils.isEmpty(sortOrder)
+				&& sortOrder.split(",")[0].trim().toUpperCase(Locale.US)
+						.endsWith(" DESC");
+		// after in descending order means smaller values
+		boolean greater = isAfter != descending;
+		String compare = greater ? " > " : " < ";
+		String idCondition = idField + compare + placeholder(FieldType.INTEGER);
+
+		String selection;
+		List<String> selectionArgs;
+		int separator = key.lastIndexOf(',');
+		if (sortExpression == null) {
+			selection = idCondition;
+			selectionArgs = Collections.singletonList(parseId(uri, key));
+		} else if (separator < 0) {
+			// NULL is smaller than any value, also in descending order
+			selection = greater ? sortExpression + " IS NOT NULL OR "
+					+ idCondition : sortExpression + " IS NULL AND "
+					+ idCondition;
+			selectionArgs = Collections.singletonList(parseId(uri, key));
+		} else {
+			String sortKey = key.substring(0, separator);
+			String id = parseId(uri, key.substring(separator + 1));
+			String sortPlaceholder = placeholder(contractDesc
+					.getFieldType(getSortField(sortExpression)));
+			// first condition is a range of index, second skips equal rows
+			selection = sortExpression + (greater ? " >= " : " <= ")
+					+ sortPlaceholder + " AND (" + sortExpression + compare
+					+ sortPlaceholder + " OR " + idCondition + ")";
+			if (!greater) {
+				selection = sortExpression + " IS NULL OR (" + selection + ")";
+			}
+			selectionArgs = new ArrayList<String>(3);
+			selectionArgs.add(sortKey);
+			selectionArgs.add(sortKey);
+			selectionArgs.add(id);
+		}
+
+		// rows before key are read backwards so limit takes closest rows
+		boolean reversed = !isAfter && limit != null;
+		String direction = descending != reversed ? " DESC" : " ASC";
+		String newSortOrder = sortExpression == null ? idField + direction
+				: sortExpression + direction + ", " + idField + direction;
+		return new Pagination(selection, selectionArgs, newSortOrder, limit,
+				reversed);
+	}
+
+	/**
+	 * Arguments of query are strings, so they are cast to type of column.
+	 * Without it key would be compared as text with sort expression that has
+	 * no numeric affinity, i.e. with joined or computed field.
+	 */
+	private static String placeholder(FieldType fieldType) {
+		if (fieldType == FieldType.INTEGER) {
+			return "CAST(? AS INTEGER)";
+		} else if (fieldType == FieldType.REAL) {
+			return "CAST(? AS REAL)";
+		} else {
+			return "?";
+		}
+	}
+
+	/**
+	 * @return sort expression (with collation) without direction or null if
+	 *         rows are sorted only by id
+	 * @throws IllegalArgumentException
+	 *             if sort order could not be used by keyset pagination
+	 */
+	static String getSortExpression(String idField, String sortOrder) {
+		if (TextUtils.isEmpty(sortOrder)) {
+			return null;
+		}
+		String[] terms = sortOrder.split(",");
+		if (terms.length > 2
+				|| terms.length == 2
+				&& !idField.equals(stripDirection(terms[1].trim()))) {
+			throw new IllegalArgumentException(
+					"Keyset pagination needs sort order by one column, got: "
+							+ sortOrder);
+		}
+		String sortExpression = stripDirection(terms[0].trim());
+		return idField.equals(sortExpression) ? null : sortExpression;
+	}
+
+	/**
+	 * @return sort order of keyset pagination, with id as tie-breaker
+	 */
+	static String getKeysetSortOrder(String idField, String sortOrder) {
+		String sortExpression = getSortExpression(idField, sortOrder);
+		boolean descending = !TextUtils.isEmpty(sortOrder)
+				&& sortOrder.split(",")[0].trim().toUpperCase(Locale.US)
+						.endsWith(" DESC");
+		String direction = descending ? " DESC" : " ASC";
+		return sortExpression == null ? idField + direction : sortExpression
+				+ direction + ", " + idField + direction;
+	}
+
+	/**
+	 * @return field of sort expression, without collation
+	 */
+	static String getSortField(String sortExpression) {
+		return sortExpression.split("\\s+")[0];
+	}
+
+	private static String parseId(Uri uri, String id) {
+		try {
+			return Long.toString(Long.parseLong(id.trim()));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Wrong id of key in uri " + uri,
+					e);
+		}
+	}
+
+	private static String stripDirection(String term) {
+		String upper = term.toUpperCase(Locale.US);
+		if (upper.endsWith(" DESC")) {
+			return term.substring(0, term.length() - 5).trim();
+		}
+		if (upper.endsWith(" ASC")) {
+			return term.substring(0, term.length() - 4).trim();
+		}
+		return term;
+	}
+
+	/**
+	 * @return range condition or null
+	 */
+	String getSelection() {
+		return mSelection;
+	}
+
+	List<String> getSelectionArgs() {
+		return mSelectionArgs;
+	}
+
+	String getSortOrder() {
+		return mSortOrder;
+	}
+
+	/**
+	 * @return true if uri has any of pagination parameters
+	 */
+	boolean isPaged() {
+		return mLimit != null || mSelection != null;
+	}
+
+	/**
+	 * @return limit clause (with offset) or null
+	 */
+	String getLimit() {
+		return mLimit;
+	}
+
+	/**
+	 * @return cursor that returns rows in requested order
+	 */
+	Cursor wrapCursor(Cursor cursor) {
+		return mReversed ? new ReversedCursor(cursor) : cursor;
+	}
+}
@@ -46,7 +46,7 @@ public class ProjectionMap extends HashMap<String, String> {
 			return this.add(alias, String.format("%s.%s", table, field));
 		}
 
-		public Builder addAll(ProjectionMap map) {
+		public Builder addAll(Map<String, String> map) {
 			for (Map.Entry<String, String> entry : map.entrySet()) {
 				mMap.putColumn(entry.getKey(), entry.getValue());
 			}
@@ -102,4 +102,14 @@ public class ProjectionMap extends HashMap<String, String> {
 	public void putAll(Map<? extends String, ? extends String> map) {
 		throw new UnsupportedOperationException();
 	}
+
+	@Override
+	public String remove(Object key) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException();
+	}
 }
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import android.provider.BaseColumns;
+
+/**
+ * Immutable projection of all tables in contract stored in sorted arrays.
+ *
+ * Every column alias exists only once, tables get read only views that show
+ * columns of tables reachable by joins instead of own copy of projection map.
+ */
+class ProjectionRegistry {
+
+	private final String[] mAliases;
+	private final String[] mExpressions;
+	private final int[] mTables;
+	private final String[] mIdExpressions;
+
+	/**
+	 * @param tableProjections
+	 *            projection of every table, index in array is table index
+	 */
+	public ProjectionRegistry(ProjectionMap[] tableProjections) {
+		int size = 0;
+		for (ProjectionMap projectionMap : tableProjections) {
+			size += projectionMap.size();
+		}
+		String[] aliases = new String[size];
+		int position = 0;
+		for (ProjectionMap projectionMap : tableProjections) {
+			for (String alias : projectionMap.keySet()) {
+				if (BaseColumns._ID.equals(alias))
+					continue;
+				aliases[position++] = alias.intern();
+			}
+		}
+		mAliases = Arrays.copyOf(aliases, position);
+		Arrays.sort(mAliases);
+
+		mExpressions = new String[mAliases.length];
+		mTables = new int[mAliases.length];
+		mIdExpressions = new String[tableProjections.length];
+		for (int table = 0; table < tableProjections.length; ++table) {
+			for (Map.Entry<String, String> entry : tableProjections[table]
+					.entrySet()) {
+				String expression = entry.getValue().intern();
+				if (BaseColumns._ID.equals(entry.getKey())) {
+					mIdExpressions[table] = expression;
+					continue;
+				}
+				int index = Arrays.binarySearch(mAliases, entry.getKey());
+				mExpressions[index] = expression;
+				mTables[index] = table;
+			}
+		}
+	}
+
+	/**
+	 * @param baseTable
+	 *            table that is queried, its "_id" is used
+	 * @param visibleTables
+	 *            tables which columns can be used
+	 */
+	public Map<String, String> createView(int baseTable, BitSet visibleTables) {
+		return new View(baseTable, (BitSet) visibleTables.clone());
+	}
+
+	private class View extends AbstractMap<String, String> {
+
+		private final int mBaseTable;
+		private final BitSet mVisibleTables;
+		private final int mSize;
+		private final Set<Entry<String, String>> mEntrySet;
+
+		View(int baseTable, BitSet visibleTables) {
+			mBaseTable = baseTable;
+			mVisibleTables = visibleTables;
+			int size = mIdExpressions[baseTable] == null ? 0 : 1;
+			for (int table : mTables) {
+				if (visibleTables.get(table)) {
+					size += 1;
+				}
+			}
+			mSize = size;
+			mEntrySet = new AbstractSet<Entry<String, String>>() {
+
+				@Override
+				public Iterator<Entry<String, String>> iterator() {
+					return new ViewIterator();
+				}
+
+				@Override
+				public int size() {
+					return mSize;
+				}
+			};
+		}
+
+		@Override
+		public String get(Object key) {
+			if (BaseColumns._ID.equals(key)) {
+				return mIdExpressions[mBaseTable];
+			}
+			if (!(key instanceof String)) {
+				return null;
+			}
+			int index = Arrays.binarySearch(mAliases, key);
+			if (index < 0 || !mVisibleTables.get(mTables[index])) {
+				return null;
+			}
+			return mExpressions[index];
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public int size() {
+			return mSize;
+		}
+
+		@Override
+		public Set<Entry<String, String>> entrySet() {
+			return mEntrySet;
+		}
+
+		private class ViewIterator implements Iterator<Entry<String, String>> {
+			// -1 is "_id" of base table
+			private int mNext;
+
+			ViewIterator() {
+				mNext = mIdExpressions[mBaseTable] == null ? findNext(0) : -1;
+			}
+
+			private int findNext(int from) {
+				for (int i = from; i < mAliases.length; ++i) {
+					if (mVisibleTables.get(mTables[i])) {
+						return i;
+					}
+				}
+				return mAliases.length;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return mNext < mAliases.length;
+			}
+
+			@Override
+			public Entry<String, String> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Entry<String, String> entry;
+				if (mNext == -1) {
+					entry = new SimpleImmutableEntry<String, String>(
+							BaseColumns._ID, mIdExpressions[mBaseTable]);
+				} else {
+					entry = new SimpleImmutableEntry<String, String>(
+							mAliases[mNext], mExpressions[mNext]);
+				}
+				mNext = findNext(mNext + 1);
+				return entry;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		}
+	}
+}
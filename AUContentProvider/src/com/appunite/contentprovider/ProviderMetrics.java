@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.appunite.contentprovider.ContractFullDesc.Route;
+import com.appunite.contentprovider.ContractFullDesc.SelectionVars;
+
+import android.os.Bundle;
+
+/**
+ * Call counts, latency histograms and row counts of provider operations per
+ * route.
+ *
+ * All counters live in one preallocated {@link AtomicLongArray}, so recording
+ * does not allocate and does not lock. Operations without route (i.e.
+ * applyBatch) are recorded under "*" route.
+ */
+public class ProviderMetrics {
+
+	public static final int QUERY = 0;
+	public static final int INSERT = 1;
+	public static final int BULK_INSERT = 2;
+	public static final int UPDATE = 3;
+	public static final int DELETE = 4;
+	public static final int APPLY_BATCH = 5;
+	private static final String[] OPERATION_NAMES = new String[] { "query",
+			"insert", "bulkInsert", "update", "delete", "applyBatch" };
+	private static final int OPERATIONS = OPERATION_NAMES.length;
+
+	private static final int COUNT = 0;
+	private static final int TOTAL_NANOS = 1;
+	private static final int MAX_NANOS = 2;
+	private static final int ROWS = 3;
+	private static final int HISTOGRAM = 4;
+	/**
+	 * Bucket i counts calls that took less than 2^(i+1) microseconds, last
+	 * bucket counts all longer calls (over ~0.5 s)
+	 */
+	private static final int BUCKETS = 20;
+	private static final int STRIDE = HISTOGRAM + BUCKETS;
+
+	private final List<Route> mRoutes;
+	private final int mOtherRoute;
+	private final AtomicLongArray mValues;
+	private final AtomicLong mNotifications = new AtomicLong();
+
+	ProviderMetrics(ContractFullDesc fullDesc) {
+		mRoutes = fullDesc.getRoutes();
+		mOtherRoute = mRoutes.size();
+		mValues = new AtomicLongArray((mRoutes.size() + 1) * OPERATIONS
+				* STRIDE);
+	}
+
+	/**
+	 * @param selectionVars
+	 *            resolved uri or null for operations without uri
+	 * @param operation
+	 *            one of {@link #QUERY}, {@link #INSERT}...
+	 * @param startNanos
+	 *            {@link System#nanoTime()} at start of operation
+	 * @param rows
+	 *            rows affected by operation, for {@link #QUERY} rows of
+	 *            returned cursor
+	 */
+	void record(SelectionVars selectionVars, int operation, long startNanos,
+			int rows) {
+		long nanos = System.nanoTime() - startNanos;
+		Route route = selectionVars == null ? null : selectionVars.getRoute();
+		int routeIndex = route == null ? mOtherRoute : route.getIndex();
+		int offset = (routeIndex * OPERATIONS + operation) * STRIDE;
+		mValues.incrementAndGet(offset + COUNT);
+		mValues.addAndGet(offset + TOTAL_NANOS, nanos);
+		mValues.addAndGet(offset + ROWS, rows);
+		long max;
+		do {
+			max = mValues.get(offset + MAX_NANOS);
+		} while (nanos > max
+				&& !mValues.compareAndSet(offset + MAX_NANOS, max, nanos));
+		long micros = nanos / 1000;
+		int bucket = micros < 2 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+		mValues.incrementAndGet(offset + HISTOGRAM
+				+ Math.min(bucket, BUCKETS - 1));
+	}
+
+	void recordNotifications(int count) {
+		mNotifications.addAndGet(count);
+	}
+
+	public void reset() {
+		for (int i = 0; i < mValues.length(); ++i) {
+			mValues.set(i, 0);
+		}
+		mNotifications.set(0);
+	}
+
+	private String getRouteName(int routeIndex) {
+		return routeIndex == mOtherRoute ? "*" : mRoutes.get(routeIndex)
+				.getName();
+	}
+
+	/**
+	 * @return upper bound in microseconds of latency of given percent of calls
+	 */
+	private long percentile(int offset, long count, int percent) {
+		long needed = (count * percent + 99) / 100;
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+			seen += mValues.get(offset + HISTOGRAM + bucket);
+			if (seen >= needed) {
+				return 1L << (bucket + 1);
+			}
+		}
+		return 1L << BUCKETS;
+	}
+
+	/**
+	 * Put metrics of every used route and operation to bundle as long array
+	 * [count, totalNanos, maxNanos, rows, histogram...] under
+	 * "&lt;route&gt; &lt;operation&gt;" key
+	 */
+	public Bundle toBundle() {
+		Bundle bundle = new Bundle();
+		for (int route = 0; route <= mOtherRoute; ++route) {
+			for (int operation = 0; operation < OPERATIONS; ++operation) {
+				int offset = (route * OPERATIONS + operation) * STRIDE;
+				if (mValues.get(offset + COUNT) == 0) {
+					continue;
+				}
+				long[] values = new long[STRIDE];
+				for (int i = 0; i < STRIDE; ++i) {
+					values[i] = mValues.get(offset + i);
+				}
+				bundle.putLongArray(getRouteName(route) + " "
+						+ OPERATION_NAMES[operation], values);
+			}
+		}
+		bundle.putLong("notifications", mNotifications.get());
+		return bundle;
+	}
+
+	public void dump(PrintWriter writer) {
+		writer.println("Provider metrics (latency in microseconds):");
+		for (int route = 0; route <= mOtherRoute; ++route) {
+			for (int operation = 0; operation < OPERATIONS; ++operation) {
+				int offset = (route * OPERATIONS + operation) * STRIDE;
+				long count = mValues.get(offset + COUNT);
+				if (count == 0) {
+					continue;
+				}
+				writer.println(String.format(
+						"  %s %s: count=%d avg=%d max=%d p50<%d p90<%d p99<%d rows=%d",
+						getRouteName(route), OPERATION_NAMES[operation], count,
+						TimeUnit.NANOSECONDS.toMicros(mValues.get(offset
+								+ TOTAL_NANOS) / count),
+						TimeUnit.NANOSECONDS.toMicros(mValues.get(offset
+								+ MAX_NANOS)), percentile(offset, count, 50),
+						percentile(offset, count, 90),
+						percentile(offset, count, 99),
+						mValues.get(offset + ROWS)));
+			}
+		}
+		writer.println("  notifications: " + mNotifications.get());
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.text.TextUtils;
+
+/**
+ * Bounded LRU cache of sql generated (and validated) for
+ * {@link BaseContentProvider#query(android.net.Uri, String[], String, String[], String)}
+ */
+class QueryCache {
+
+	static class Key {
+		private final String mTable;
+		private final String[] mProjection;
+		private final String mSelection;
+		private final String mSortOrder;
+		private final String mLimit;
+		private final int mHashCode;
+
+		Key(String table, String[] projection, String selection,
+				String sortOrder, String limit) {
+			mTable = table;
+			mProjection = projection;
+			mSelection = selection;
+			mSortOrder = sortOrder;
+			mLimit = limit;
+			int hashCode = table.hashCode();
+			hashCode = 31 * hashCode + Arrays.hashCode(projection);
+			hashCode = 31 * hashCode + (selection == null ? 0 : selection.hashCode());
+			hashCode = 31 * hashCode + (sortOrder == null ? 0 : sortOrder.hashCode());
+			hashCode = 31 * hashCode + (limit == null ? 0 : limit.hashCode());
+			mHashCode = hashCode;
+		}
+
+		/**
+		 * Projection array belongs to caller and could be changed later
+		 */
+		Key copy() {
+			return new Key(mTable, mProjection == null ? null
+					: mProjection.clone(), mSelection, mSortOrder, mLimit);
+		}
+
+		@Override
+		public int hashCode() {
+			return mHashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			Key obj = (Key) o;
+			return mHashCode == obj.mHashCode
+					&& mTable.equals(obj.mTable)
+					&& Arrays.equals(mProjection, obj.mProjection)
+					&& TextUtils.equals(mSelection, obj.mSelection)
+					&& TextUtils.equals(mSortOrder, obj.mSortOrder)
+					&& TextUtils.equals(mLimit, obj.mLimit);
+		}
+	}
+
+	private final LinkedHashMap<Key, String> mQueries;
+
+	public QueryCache(final int maxSize) {
+		mQueries = new LinkedHashMap<Key, String>(0, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	public synchronized String get(Key key) {
+		return mQueries.get(key);
+	}
+
+	public synchronized void put(Key key, String sql) {
+		mQueries.put(key.copy(), sql);
+	}
+
+	public synchronized void evictAll() {
+		mQueries.clear();
+	}
+}
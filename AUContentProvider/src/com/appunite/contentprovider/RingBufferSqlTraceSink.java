@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import android.content.ContentValues;
+
+/**
+ * Keeps last statements with their durations in memory, so they can be
+ * dumped on demand (i.e. by "adb shell dumpsys activity provider" or
+ * {@link BaseContentProvider#METHOD_GET_SQL_TRACE}) also from release builds.
+ *
+ * Arrays are allocated once. Arguments may contain user data so they are
+ * kept (as copies) only if requested; statements are formatted only when
+ * they are dumped.
+ */
+public class RingBufferSqlTraceSink implements SqlTraceSink {
+
+	private final String[] mSql;
+	private final ContentValues[] mValues;
+	private final String[][] mSelectionArgs;
+	private final long[] mTimeMillis;
+	private final long[] mDurationNanos;
+	private final boolean mKeepArguments;
+	private int mNext = 0;
+	private int mSize = 0;
+
+	public RingBufferSqlTraceSink(int capacity) {
+		this(capacity, false);
+	}
+
+	/**
+	 * @param capacity
+	 *            number of last statements that are kept
+	 * @param keepArguments
+	 *            true if copies of values and selection arguments should be
+	 *            kept too
+	 */
+	public RingBufferSqlTraceSink(int capacity, boolean keepArguments) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity have to be positive");
+		}
+		mSql = new String[capacity];
+		mTimeMillis = new long[capacity];
+		mDurationNanos = new long[capacity];
+		mKeepArguments = keepArguments;
+		mValues = keepArguments ? new ContentValues[capacity] : null;
+		mSelectionArgs = keepArguments ? new String[capacity][] : null;
+	}
+
+	@Override
+	public void onStatement(String sql, ContentValues values,
+			String[] selectionArgs, long durationNanos) {
+		ContentValues valuesCopy = null;
+		String[] selectionArgsCopy = null;
+		if (mKeepArguments) {
+			valuesCopy = values == null ? null : new ContentValues(values);
+			selectionArgsCopy = selectionArgs == null ? null : selectionArgs
+					.clone();
+		}
+		long timeMillis = System.currentTimeMillis();
+		synchronized (this) {
+			int index = mNext;
+			mSql[index] = sql;
+			mTimeMillis[index] = timeMillis;
+			mDurationNanos[index] = durationNanos;
+			if (mKeepArguments) {
+				mValues[index] = valuesCopy;
+				mSelectionArgs[index] = selectionArgsCopy;
+			}
+			mNext = (index + 1) % mSql.length;
+			if (mSize < mSql.length) {
+				mSize++;
+			}
+		}
+	}
+
+	@Override
+	public void dump(PrintWriter writer) {
+		int capacity = mSql.length;
+		String[] sql = new String[capacity];
+		long[] timeMillis = new long[capacity];
+		long[] durationNanos = new long[capacity];
+		ContentValues[] values = new ContentValues[capacity];
+		String[][] selectionArgs = new String[capacity][];
+		int size;
+		synchronized (this) {
+			size = mSize;
+			int first = (mNext - size + capacity) % capacity;
+			for (int i = 0; i < size; ++i) {
+				int index = (first + i) % capacity;
+				sql[i] = mSql[index];
+				timeMillis[i] = mTimeMillis[index];
+				durationNanos[i] = mDurationNanos[index];
+				if (mKeepArguments) {
+					values[i] = mValues[index];
+					selectionArgs[i] = mSelectionArgs[index];
+				}
+			}
+		}
+		SimpleDateFormat dateFormat = new SimpleDateFormat(
+				"MM-dd HH:mm:ss.SSS", Locale.US);
+		writer.println("Last " + size + " statements:");
+		for (int i = 0; i < size; ++i) {
+			writer.print(dateFormat.format(new Date(timeMillis[i])));
+			writer.print(" ");
+			writer.println(LogcatSqlTraceSink.format(sql[i], values[i],
+					selectionArgs[i], durationNanos[i]));
+		}
+	}
+
+	public synchronized void clear() {
+		for (int i = 0; i < mSql.length; ++i) {
+			mSql[i] = null;
+			if (mKeepArguments) {
+				mValues[i] = null;
+				mSelectionArgs[i] = null;
+			}
+		}
+		mNext = 0;
+		mSize = 0;
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentValues;
+
+/**
+ * Passes only every n-th statement and every slow statement to other sink,
+ * i.e. to keep {@link RingBufferSqlTraceSink} in release builds without
+ * copying arguments of every statement
+ */
+public class SamplingSqlTraceSink implements SqlTraceSink {
+
+	private final SqlTraceSink mSink;
+	private final int mSampleRate;
+	private final long mSlowNanos;
+	private final AtomicInteger mCounter = new AtomicInteger();
+
+	/**
+	 * @param sink
+	 *            sink that receives sampled statements
+	 * @param sampleRate
+	 *            every sampleRate-th statement is passed
+	 * @param slowMillis
+	 *            statements that take at least slowMillis are always passed,
+	 *            0 to pass only sampled statements
+	 */
+	public SamplingSqlTraceSink(SqlTraceSink sink, int sampleRate,
+			long slowMillis) {
+		if (sampleRate < 1) {
+			throw new IllegalArgumentException("sampleRate have to be positive");
+		}
+		mSink = sink;
+		mSampleRate = sampleRate;
+		mSlowNanos = slowMillis <= 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS
+				.toNanos(slowMillis);
+	}
+
+	@Override
+	public void onStatement(String sql, ContentValues values,
+			String[] selectionArgs, long durationNanos) {
+		boolean sampled = mCounter.incrementAndGet() % mSampleRate == 0;
+		if (sampled || durationNanos >= mSlowNanos) {
+			mSink.onStatement(sql, values, selectionArgs, durationNanos);
+		}
+	}
+
+	@Override
+	public void dump(PrintWriter writer) {
+		writer.println("Sampled every " + mSampleRate + " statement");
+		mSink.dump(writer);
+	}
+}
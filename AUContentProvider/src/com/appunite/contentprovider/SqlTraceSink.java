@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.io.PrintWriter;
+
+import android.content.ContentValues;
+
+/**
+ * Receives sql statements executed by {@link BaseContentProvider} with their
+ * durations, see {@link BaseContentProvider#setSqlTraceSink(SqlTraceSink)}.
+ *
+ * Statement is passed as it is, sink formats it only if it really needs text.
+ * When there is no sink provider does not measure or format anything.
+ * Implementations have to be thread safe.
+ */
+public interface SqlTraceSink {
+
+	/**
+	 * @param sql
+	 *            executed sql
+	 * @param values
+	 *            inserted or updated values or null, owned by caller so they
+	 *            can not be kept
+	 * @param selectionArgs
+	 *            arguments of selection or null, owned by caller so they can
+	 *            not be kept
+	 * @param durationNanos
+	 *            time of execution in nanoseconds
+	 */
+	public void onStatement(String sql, ContentValues values,
+			String[] selectionArgs, long durationNanos);
+
+	/**
+	 * Print kept statements, if any
+	 */
+	public void dump(PrintWriter writer);
+}
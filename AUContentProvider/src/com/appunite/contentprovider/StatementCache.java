@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Bounded LRU cache of compiled statements.
+ *
+ * Statements are keyed by their sql, that already contains table, operation,
+ * sorted columns and where clause. Statement is taken out of the cache for the
+ * time it is used, so two threads never bind arguments to the same statement.
+ */
+public class StatementCache {
+
+	private final int mMaxSize;
+	private final LinkedHashMap<String, SQLiteStatement> mStatements;
+	private long mHitCount = 0;
+	private long mMissCount = 0;
+	private long mEvictionCount = 0;
+
+	public StatementCache(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		mMaxSize = maxSize;
+		mStatements = new LinkedHashMap<String, SQLiteStatement>(0, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, SQLiteStatement> eldest) {
+				if (size() <= mMaxSize) {
+					return false;
+				}
+				mEvictionCount += 1;
+				eldest.getValue().close();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Take statement from cache or compile new one. Every acquired statement
+	 * have to be given back by {@link #release(String, SQLiteStatement)}
+	 */
+	SQLiteStatement acquire(SQLiteDatabase db, String sql) {
+		synchronized (this) {
+			SQLiteStatement statement = mStatements.remove(sql);
+			if (statement != null) {
+				mHitCount += 1;
+				return statement;
+			}
+			mMissCount += 1;
+		}
+		return db.compileStatement(sql);
+	}
+
+	void release(String sql, SQLiteStatement statement) {
+		statement.clearBindings();
+		synchronized (this) {
+			if (!mStatements.containsKey(sql)) {
+				mStatements.put(sql, statement);
+				return;
+			}
+		}
+		// other thread already returned the same statement
+		statement.close();
+	}
+
+	public synchronized void evictAll() {
+		for (SQLiteStatement statement : mStatements.values()) {
+			statement.close();
+		}
+		mStatements.clear();
+	}
+
+	public synchronized int size() {
+		return mStatements.size();
+	}
+
+	public int maxSize() {
+		return mMaxSize;
+	}
+
+	public synchronized long hitCount() {
+		return mHitCount;
+	}
+
+	public synchronized long missCount() {
+		return mMissCount;
+	}
+
+	public synchronized long evictionCount() {
+		return mEvictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		long accesses = mHitCount + mMissCount;
+		long hitPercent = accesses == 0 ? 0 : 100 * mHitCount / accesses;
+		return String.format(
+				"StatementCache[size=%d,maxSize=%d,hits=%d,misses=%d,evictions=%d,hitRate=%d%%]",
+				mStatements.size(), mMaxSize, mHitCount, mMissCount,
+				mEvictionCount, hitPercent);
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.appunite.contentprovider.ContractFullDesc.SelectionVars;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.SystemClock;
+
+/**
+ * Mark and sweep synchronization in one transaction.
+ *
+ * Every row received from server is upserted (tables should have guid field)
+ * and its id is remembered in temporary table. After all rows are received
+ * {@link #sweep(Uri)} deletes rows that were not upserted by one DELETE per
+ * table, so there is no need for sync token column.
+ *
+ * Ids are never reused (id fields are autoincrement), so the biggest id when
+ * table was first used in session separates rows that existed before it from
+ * new ones. Rows committed by other writers after a yield are neither deleted
+ * by sweep nor counted in {@link Stats}.
+ *
+ * <pre>
+ * SyncSession session = provider.beginSyncSession();
+ * try {
+ * 	for (...) {
+ * 		session.upsert(Book.CONTENT_URI, values);
+ * 	}
+ * 	session.sweep(Book.CONTENT_URI);
+ * 	session.setSuccessful();
+ * } finally {
+ * 	session.end();
+ * }
+ * </pre>
+ *
+ * Session is bound to the thread that started it, all methods have to be
+ * called from this thread. Transaction yields according to
+ * {@link BaseContentProvider#getYieldPolicy()}, rows upserted before yield
+ * point stay in database even if session is not successful, but nothing is
+ * deleted then. Session started inside other transaction never yields.
+ */
+public class SyncSession {
+
+	public static class Stats {
+		int mInserted = 0;
+		int mUpdated = 0;
+		int mDeleted = 0;
+
+		public int getInsertedCount() {
+			return mInserted;
+		}
+
+		public int getUpdatedCount() {
+			return mUpdated;
+		}
+
+		public int getDeletedCount() {
+			return mDeleted;
+		}
+
+		@Override
+		public String toString() {
+			return "Stats[inserted=" + mInserted + ",updated=" + mUpdated
+					+ ",deleted=" + mDeleted + "]";
+		}
+	}
+
+	private static class TableState {
+		final String mSeenTable;
+		final SQLiteStatement mSeenStatement;
+		// biggest id of rows that existed before session
+		final long mMaxExistingId;
+		final Stats mStats = new Stats();
+
+		TableState(String seenTable, SQLiteStatement seenStatement,
+				long maxExistingId) {
+			mSeenTable = seenTable;
+			mSeenStatement = seenStatement;
+			mMaxExistingId = maxExistingId;
+		}
+	}
+
+	// makes temporary tables of every session unique, sessions can be nested
+	private static final AtomicInteger sSessionCounter = new AtomicInteger();
+
+	private final BaseContentProvider mProvider;
+	private final SQLiteDatabase mDb;
+	private final YieldPolicy mYieldPolicy;
+	private final boolean mCanYield;
+	private final Map<String, TableState> mTables = new HashMap<String, TableState>();
+	private final int mSessionId = sSessionCounter.incrementAndGet();
+	private int mOperations = 0;
+	private long mYieldAttemptTime;
+	private boolean mSuccessful = false;
+	private boolean mEnded = false;
+
+	SyncSession(BaseContentProvider provider, SQLiteDatabase db,
+			YieldPolicy yieldPolicy, boolean canYield) {
+		mProvider = provider;
+		mDb = db;
+		mYieldPolicy = yieldPolicy;
+		mCanYield = canYield;
+		mYieldAttemptTime = SystemClock.uptimeMillis();
+	}
+
+	private void checkNotEnded() {
+		if (mEnded) {
+			throw new IllegalStateException("Sync session already ended");
+		}
+	}
+
+	private TableState getTableState(String table, String idField) {
+		TableState state = mTables.get(table);
+		if (state != null) {
+			return state;
+		}
+		String seenTable = "sync_seen_" + mSessionId + "_" + table;
+		mDb.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + seenTable
+				+ " (id INTEGER PRIMARY KEY)");
+		mDb.execSQL("DELETE FROM temp." + seenTable);
+		SQLiteStatement seenStatement = mDb
+				.compileStatement("INSERT OR IGNORE INTO temp." + seenTable
+						+ " (id) VALUES (?)");
+		// rows inserted later (also by other writers after yield) get bigger
+		// ids, max of primary key does not scan table
+		long maxExistingId = DatabaseUtils.longForQuery(mDb,
+				"SELECT ifnull(max(" + idField + "), 0) FROM " + table, null);
+		state = new TableState(seenTable, seenStatement, maxExistingId);
+		mTables.put(table, state);
+		return state;
+	}
+
+	/**
+	 * Insert row or update row with the same guid and mark it as seen
+	 * 
+	 * @return uri of row
+	 */
+	public Uri upsert(Uri uri, ContentValues values) {
+		checkNotEnded();
+		long now = SystemClock.uptimeMillis();
+		if (mCanYield
+				&& mYieldPolicy.shouldYield(++mOperations, now
+						- mYieldAttemptTime, true)) {
+			mOperations = 0;
+			mYieldAttemptTime = now;
+			mProvider.yieldIfContended(mDb, mYieldPolicy);
+		}
+
+		SelectionVars selectionVars = mProvider.getFullDesc()
+				.getSelectionVarsFromUri(uri);
+		TableState state = getTableState(selectionVars.getTable(),
+				selectionVars.getContractDesc().getIdField());
+
+		Uri newUri = mProvider.insert(uri, values);
+		long id = ContentUris.parseId(newUri);
+		state.mSeenStatement.bindLong(1, id);
+		if (state.mSeenStatement.executeInsert() == -1) {
+			// the same row was already upserted in this session
+			return newUri;
+		}
+		if (id > state.mMaxExistingId) {
+			state.mStats.mInserted += 1;
+		} else {
+			state.mStats.mUpdated += 1;
+		}
+		return newUri;
+	}
+
+	/**
+	 * Delete all rows of uri that existed before session and were not
+	 * upserted in it. Delete triggers of table are called once with set based
+	 * selection.
+	 * 
+	 * @return number of deleted rows
+	 */
+	public int sweep(Uri uri) {
+		checkNotEnded();
+		SelectionVars selectionVars = mProvider.getFullDesc()
+				.getSelectionVarsFromUri(uri);
+		String idField = selectionVars.getContractDesc().getIdField();
+		TableState state = getTableState(selectionVars.getTable(), idField);
+		int deleted = mProvider.delete(uri, idField + " <= ? AND " + idField
+				+ " NOT IN (SELECT id FROM temp." + state.mSeenTable + ")",
+				new String[] { Long.toString(state.mMaxExistingId) });
+		state.mStats.mDeleted += deleted;
+		return deleted;
+	}
+
+	/**
+	 * Mark session as successful, without it changes are rolled back by
+	 * {@link #end()}
+	 */
+	public void setSuccessful() {
+		checkNotEnded();
+		mSuccessful = true;
+	}
+
+	/**
+	 * Commit or roll back session and send change notifications
+	 */
+	public void end() {
+		checkNotEnded();
+		mEnded = true;
+		try {
+			List<String> tempTables = new ArrayList<String>(mTables.size());
+			for (TableState state : mTables.values()) {
+				state.mSeenStatement.close();
+				tempTables.add(state.mSeenTable);
+			}
+			for (String tempTable : tempTables) {
+				mDb.execSQL("DROP TABLE IF EXISTS temp." + tempTable);
+			}
+		} finally {
+			mProvider.endSyncSession(mDb, mSuccessful);
+		}
+	}
+
+	/**
+	 * @return counts of rows of uri table changed by this session
+	 */
+	public Stats getStats(Uri uri) {
+		String table = mProvider.getFullDesc().getSelectionVarsFromUri(uri)
+				.getTable();
+		TableState state = mTables.get(table);
+		return state == null ? new Stats() : state.mStats;
+	}
+
+	/**
+	 * @return counts of rows of all tables changed by this session
+	 */
+	public Stats getStats() {
+		Stats stats = new Stats();
+		for (TableState state : mTables.values()) {
+			stats.mInserted += state.mStats.mInserted;
+			stats.mUpdated += state.mStats.mUpdated;
+			stats.mDeleted += state.mStats.mDeleted;
+		}
+		return stats;
+	}
+}
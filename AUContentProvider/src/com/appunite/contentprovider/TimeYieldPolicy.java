@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+/**
+ * Yield after time, so database lock is never held longer than given time
+ * no matter how fast single operations are
+ */
+public class TimeYieldPolicy implements YieldPolicy {
+
+	private final long mMinMillis;
+	private final long mForceMillis;
+	private final int mMaxOperations;
+	private final long mSleepAfterYieldMillis;
+
+	public TimeYieldPolicy() {
+		this(100, 500, Integer.MAX_VALUE, 0);
+	}
+
+	/**
+	 * @param minMillis
+	 *            yield at first yield allowed operation after this time
+	 * @param forceMillis
+	 *            yield even if operation does not allow it after this time
+	 * @param maxOperations
+	 *            fail if there was no yield attempt after this number of
+	 *            operations
+	 * @param sleepAfterYieldMillis
+	 *            time to wait for other threads after yield
+	 */
+	public TimeYieldPolicy(long minMillis, long forceMillis,
+			int maxOperations, long sleepAfterYieldMillis) {
+		mMinMillis = minMillis;
+		mForceMillis = forceMillis;
+		mMaxOperations = maxOperations;
+		mSleepAfterYieldMillis = sleepAfterYieldMillis;
+	}
+
+	@Override
+	public boolean shouldYield(int operations, long millis,
+			boolean yieldAllowed) {
+		return millis >= mMinMillis && yieldAllowed || millis >= mForceMillis;
+	}
+
+	@Override
+	public int getMaxOperationsPerYieldPoint() {
+		return mMaxOperations;
+	}
+
+	@Override
+	public long getSleepAfterYieldMillis() {
+		return mSleepAfterYieldMillis;
+	}
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.appunite.contentprovider.ContractFullDesc.SelectionVars;
+
+import android.os.Bundle;
+
+/**
+ * Times of write path of {@link BaseContentProvider}: how long transactions
+ * wait for and hold database lock, how often yield attempts really yield
+ * and how long every trigger takes.
+ *
+ * Only explicit transactions are measured (applyBatch, bulkInsert, sync
+ * sessions and operations with triggers). Trigger times are inclusive, i.e.
+ * time of trigger that inserts other rows contains their triggers.
+ */
+public class WriteProfiler {
+
+	public static final int ON_INSERT = 0;
+	public static final int ON_AFTER_INSERT = 1;
+	public static final int ON_UPDATE = 2;
+	public static final int ON_AFTER_UPDATE = 3;
+	public static final int ON_DELETE = 4;
+	public static final int ON_AFTER_DELETE = 5;
+	private static final String[] CALLBACK_NAMES = new String[] { "onInsert",
+			"onAfterInsert", "onUpdate", "onAfterUpdate", "onDelete",
+			"onAfterDelete" };
+
+	/**
+	 * Count, total and maximal time of something
+	 */
+	public static class Timer {
+		private final String mName;
+		private final AtomicLong mCount = new AtomicLong();
+		private final AtomicLong mTotalNanos = new AtomicLong();
+		private final AtomicLong mMaxNanos = new AtomicLong();
+
+		Timer(String name) {
+			mName = name;
+		}
+
+		void record(long nanos) {
+			mCount.incrementAndGet();
+			mTotalNanos.addAndGet(nanos);
+			long max;
+			do {
+				max = mMaxNanos.get();
+			} while (nanos > max && !mMaxNanos.compareAndSet(max, nanos));
+		}
+
+		void reset() {
+			mCount.set(0);
+			mTotalNanos.set(0);
+			mMaxNanos.set(0);
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public long getCount() {
+			return mCount.get();
+		}
+
+		public long getTotalNanos() {
+			return mTotalNanos.get();
+		}
+
+		public long getMaxNanos() {
+			return mMaxNanos.get();
+		}
+
+		/**
+		 * @return [count, totalNanos, maxNanos]
+		 */
+		long[] toArray() {
+			return new long[] { getCount(), getTotalNanos(), getMaxNanos() };
+		}
+
+		@Override
+		public String toString() {
+			long count = getCount();
+			return String.format("%s: count=%d total=%d avg=%d max=%d", mName,
+					count, TimeUnit.NANOSECONDS.toMicros(getTotalNanos()),
+					count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(getTotalNanos()
+							/ count), TimeUnit.NANOSECONDS.toMicros(getMaxNanos()));
+		}
+	}
+
+	private final Timer mTransactionWait = new Timer("transaction wait");
+	private final Timer mTransactionHold = new Timer("transaction hold");
+	private final Timer mYield = new Timer("yield");
+	private final AtomicLong mYieldAttempts = new AtomicLong();
+	private final AtomicLong mChunkCommits = new AtomicLong();
+	// timers of callback by table and trigger, one trigger instance can be
+	// added to many tables. Tables and triggers are fixed in frozen contract,
+	// so maps only grow until every trigger was called once.
+	private final List<ConcurrentHashMap<String, ConcurrentHashMap<Object, Timer>>> mTriggers;
+
+	WriteProfiler() {
+		mTriggers = new ArrayList<ConcurrentHashMap<String, ConcurrentHashMap<Object, Timer>>>(
+				CALLBACK_NAMES.length);
+		for (int i = 0; i < CALLBACK_NAMES.length; ++i) {
+			mTriggers
+					.add(new ConcurrentHashMap<String, ConcurrentHashMap<Object, Timer>>());
+		}
+	}
+
+	/**
+	 * @param nanos
+	 *            time of waiting for database lock when outermost transaction
+	 *            was started
+	 */
+	void recordTransactionWait(long nanos) {
+		mTransactionWait.record(nanos);
+	}
+
+	/**
+	 * @param nanos
+	 *            time from start of transaction (or from last yield) to its
+	 *            end (or to next yield)
+	 */
+	void recordTransactionHold(long nanos) {
+		mTransactionHold.record(nanos);
+	}
+
+	/**
+	 * @param nanos
+	 *            time of yield attempt
+	 * @param yielded
+	 *            true if transaction was really committed and started again
+	 */
+	void recordYield(long nanos, boolean yielded) {
+		mYieldAttempts.incrementAndGet();
+		if (yielded) {
+			mYield.record(nanos);
+		}
+	}
+
+	void recordChunkCommit() {
+		mChunkCommits.incrementAndGet();
+	}
+
+	/**
+	 * @param callback
+	 *            one of {@link #ON_INSERT}, {@link #ON_AFTER_INSERT}...
+	 */
+	void recordTrigger(int callback, Object trigger,
+			SelectionVars selectionVars, long nanos) {
+		ConcurrentHashMap<String, ConcurrentHashMap<Object, Timer>> tables = mTriggers
+				.get(callback);
+		String table = selectionVars.getTable();
+		ConcurrentHashMap<Object, Timer> timers = tables.get(table);
+		if (timers == null) {
+			timers = new ConcurrentHashMap<Object, Timer>();
+			ConcurrentHashMap<Object, Timer> previous = tables.putIfAbsent(
+					table, timers);
+			if (previous != null) {
+				timers = previous;
+			}
+		}
+		Timer timer = timers.get(trigger);
+		if (timer == null) {
+			timer = new Timer(CALLBACK_NAMES[callback] + " " + table + " "
+					+ trigger.getClass().getSimpleName());
+			Timer previous = timers.putIfAbsent(trigger, timer);
+			if (previous != null) {
+				timer = previous;
+			}
+		}
+		timer.record(nanos);
+	}
+
+	public Timer getTransactionWait() {
+		return mTransactionWait;
+	}
+
+	public Timer getTransactionHold() {
+		return mTransactionHold;
+	}
+
+	/**
+	 * @return timer of yield attempts that really yielded
+	 */
+	public Timer getYield() {
+		return mYield;
+	}
+
+	public long getYieldAttempts() {
+		return mYieldAttempts.get();
+	}
+
+	public long getChunkCommits() {
+		return mChunkCommits.get();
+	}
+
+	/**
+	 * @return timers of all called triggers, slowest (by total time) first
+	 */
+	public List<Timer> getTriggers() {
+		List<Timer> timers = new ArrayList<Timer>();
+		for (ConcurrentHashMap<String, ConcurrentHashMap<Object, Timer>> tables : mTriggers) {
+			for (ConcurrentHashMap<Object, Timer> tableTimers : tables.values()) {
+				timers.addAll(tableTimers.values());
+			}
+		}
+		Collections.sort(timers, new Comparator<Timer>() {
+			@Override
+			public int compare(Timer lhs, Timer rhs) {
+				long lhsTotal = lhs.getTotalNanos();
+				long rhsTotal = rhs.getTotalNanos();
+				return lhsTotal > rhsTotal ? -1 : lhsTotal == rhsTotal ? 0 : 1;
+			}
+		});
+		return timers;
+	}
+
+	public void reset() {
+		mTransactionWait.reset();
+		mTransactionHold.reset();
+		mYield.reset();
+		mYieldAttempts.set(0);
+		mChunkCommits.set(0);
+		for (Timer timer : getTriggers()) {
+			timer.reset();
+		}
+	}
+
+	/**
+	 * Put every timer to bundle as long array [count, totalNanos, maxNanos]
+	 * under its name, and "yield attempts" and "chunk commits" as longs
+	 */
+	public Bundle toBundle() {
+		Bundle bundle = new Bundle();
+		bundle.putLongArray(mTransactionWait.getName(),
+				mTransactionWait.toArray());
+		bundle.putLongArray(mTransactionHold.getName(),
+				mTransactionHold.toArray());
+		bundle.putLongArray(mYield.getName(), mYield.toArray());
+		bundle.putLong("yield attempts", getYieldAttempts());
+		bundle.putLong("chunk commits", getChunkCommits());
+		for (Timer timer : getTriggers()) {
+			bundle.putLongArray(timer.getName(), timer.toArray());
+		}
+		return bundle;
+	}
+
+	public void dump(PrintWriter writer) {
+		writer.println("Write profile (time in microseconds):");
+		writer.println("  " + mTransactionWait);
+		writer.println("  " + mTransactionHold);
+		writer.println("  " + mYield + " attempts=" + getYieldAttempts());
+		writer.println("  chunk commits: " + getChunkCommits());
+		for (Timer timer : getTriggers()) {
+			writer.println("  " + timer);
+		}
+	}
+}
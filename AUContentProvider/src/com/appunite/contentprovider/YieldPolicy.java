@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+/**
+ * Decides when long write transaction of
+ * {@link BaseContentProvider#applyBatch(java.util.ArrayList)} and
+ * {@link BaseContentProvider#bulkInsert(android.net.Uri, android.content.ContentValues[])}
+ * tries to let other threads use database.
+ *
+ * Yield is only an attempt, transaction is committed and started again only
+ * if other thread waits for database lock. Implementations have to be thread
+ * safe because one policy is shared by all calls.
+ */
+public interface YieldPolicy {
+
+	/**
+	 * Called before every operation
+	 * 
+	 * @param operations
+	 *            number of operations since last yield attempt
+	 * @param millis
+	 *            time in milliseconds since last yield attempt
+	 * @param yieldAllowed
+	 *            true if next operation allows yield
+	 * @return true if provider should try to yield before next operation
+	 */
+	public boolean shouldYield(int operations, long millis,
+			boolean yieldAllowed);
+
+	/**
+	 * @return maximum number of operations without yield point (yield attempt
+	 *         before operation that allows yield), when it is reached batch
+	 *         fails. If auto chunking is enabled operations are committed
+	 *         instead when there was no commit or successful yield for this
+	 *         number of operations. Not checked for batch applied in
+	 *         transaction of caller.
+	 */
+	public int getMaxOperationsPerYieldPoint();
+
+	/**
+	 * @return time in milliseconds to wait for other threads after yield
+	 */
+	public long getSleepAfterYieldMillis();
+}
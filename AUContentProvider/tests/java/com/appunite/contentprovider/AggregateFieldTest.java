@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import com.appunite.contentprovider.ContractDesc.FieldType;
+import com.appunite.contentprovider.ContractFullDesc.Aggregate;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+
+public class AggregateFieldTest extends AndroidTestCase {
+
+	private static final String GROUPS = "groups";
+	private static final Uri GROUPS_URI = Uri.parse("content://"
+			+ TestProvider.AUTHORITY + "/" + GROUPS);
+	private static final String GROUP_ID = DataHelper.field(GROUPS,
+			BaseColumns._ID);
+	private static final String GROUP_KEY = DataHelper.field(GROUPS, "key");
+	private static final String GROUP_ITEMS_COUNT = DataHelper.field(GROUPS,
+			"items_count");
+	private static final String ITEM_GROUP_KEY = DataHelper.field(
+			TestProvider.ITEMS, "group_key");
+
+	private static ContractDesc.Builder groupsBuilder() {
+		return new ContractDesc.Builder(GROUPS, GROUP_ID,
+				DataHelper.contentType(TestProvider.AUTHORITY, GROUPS),
+				DataHelper.contentItemType(TestProvider.AUTHORITY, GROUPS))
+				.addTableField(GROUP_KEY, FieldType.TEXT);
+	}
+
+	private static ContractDesc itemsDesc() {
+		return TestProvider.itemsBuilder()
+				.addTableField(ITEM_GROUP_KEY, FieldType.TEXT).build();
+	}
+
+	private static class GroupsProvider extends TestProvider {
+
+		private final ContractFullDesc mFullDesc;
+
+		GroupsProvider() {
+			super(new OperationCountYieldPolicy(), false);
+			ContractDesc groups = groupsBuilder().addAggregateField(
+					GROUP_ITEMS_COUNT, Aggregate.COUNT, null).build();
+			ContractDesc items = itemsDesc();
+			// connected by key, not by id, so items can come first
+			mFullDesc = new ContractFullDesc.Builder(AUTHORITY)
+					.addTable(groups)
+					.addTable(items)
+					.addConnection1n(groups, GROUP_KEY, items, ITEM_GROUP_KEY)
+					.addAggregateField(groups, GROUP_ITEMS_COUNT,
+							Aggregate.COUNT, items, null).build();
+		}
+
+		@Override
+		protected ContractFullDesc getFullDesc() {
+			return mFullDesc;
+		}
+	}
+
+	private TestProvider mProvider;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mProvider = TestProvider.attach(getContext(), new GroupsProvider());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestProvider.deleteDatabase(getContext());
+		super.tearDown();
+	}
+
+	private void insertItem(String groupKey) {
+		ContentValues values = new ContentValues();
+		values.put(ITEM_GROUP_KEY, groupKey);
+		mProvider.insert(TestProvider.ITEMS_URI, values);
+	}
+
+	private long insertGroup(String key) {
+		ContentValues values = new ContentValues();
+		values.put(GROUP_KEY, key);
+		return ContentUris.parseId(mProvider.insert(GROUPS_URI, values));
+	}
+
+	private long getItemsCount(long groupId) {
+		Cursor cursor = mProvider.query(
+				ContentUris.withAppendedId(GROUPS_URI, groupId),
+				new String[] { GROUP_ITEMS_COUNT }, null, null, null);
+		try {
+			assertTrue(cursor.moveToFirst());
+			return cursor.getLong(0);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public void testCountsItemsInsertedAfterGroup() {
+		long groupId = insertGroup("a");
+		insertItem("a");
+		insertItem("a");
+
+		assertEquals(2, getItemsCount(groupId));
+	}
+
+	public void testCountsItemsInsertedBeforeGroup() {
+		insertItem("a");
+		insertItem("a");
+		insertItem("b");
+
+		long groupId = insertGroup("a");
+
+		assertEquals(2, getItemsCount(groupId));
+	}
+
+	public void testCountsItemsAfterKeyChange() {
+		insertItem("b");
+		long groupId = insertGroup("a");
+
+		ContentValues values = new ContentValues();
+		values.put(GROUP_KEY, "b");
+		mProvider.update(ContentUris.withAppendedId(GROUPS_URI, groupId),
+				values, null, null);
+
+		assertEquals(1, getItemsCount(groupId));
+	}
+
+	public void testUndeclaredAggregateFieldIsRejected() {
+		ContractDesc groups = groupsBuilder().build();
+		ContractDesc items = itemsDesc();
+		try {
+			new ContractFullDesc.Builder(TestProvider.AUTHORITY)
+					.addTable(groups)
+					.addTable(items)
+					.addConnection1n(groups, GROUP_KEY, items, ITEM_GROUP_KEY)
+					.addAggregateField(groups, GROUP_ITEMS_COUNT,
+							Aggregate.COUNT, items, null);
+			fail("aggregate field have to be declared in table");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testNotMaintainedAggregateFieldIsRejected() {
+		ContractDesc groups = groupsBuilder().addAggregateField(
+				GROUP_ITEMS_COUNT, Aggregate.COUNT, null).build();
+		try {
+			new ContractFullDesc.Builder(TestProvider.AUTHORITY).addTable(
+					groups).build();
+			fail("aggregate field without triggers would never change");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
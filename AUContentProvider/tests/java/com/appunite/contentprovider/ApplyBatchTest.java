@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.ArrayList;
+
+import android.content.ContentProviderOperation;
+import android.content.OperationApplicationException;
+import android.test.AndroidTestCase;
+
+public class ApplyBatchTest extends AndroidTestCase {
+
+	// yield attempt before every operation, without waiting
+	private static final YieldPolicy ALWAYS_YIELD = new OperationCountYieldPolicy(
+			0, 0, 500, 0);
+
+	private TestProvider mProvider;
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestProvider.deleteDatabase(getContext());
+		super.tearDown();
+	}
+
+	private static ArrayList<ContentProviderOperation> inserts(int count,
+			boolean yieldAllowed) {
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		for (int i = 0; i < count; ++i) {
+			operations.add(ContentProviderOperation
+					.newInsert(TestProvider.ITEMS_URI)
+					.withValue(TestProvider.ITEM_GUID, "guid" + i)
+					.withValue(TestProvider.ITEM_NAME, "item " + i)
+					.withValue(TestProvider.ITEM_POSITION, i)
+					.withYieldAllowed(yieldAllowed).build());
+		}
+		return operations;
+	}
+
+	public void testApplyBatchTriesToYield() throws Exception {
+		mProvider = TestProvider.create(getContext(), ALWAYS_YIELD, false);
+
+		mProvider.applyBatch(inserts(20, true));
+
+		assertEquals(20, mProvider.count(TestProvider.ITEMS_URI));
+		assertTrue(mProvider.getWriteProfiler().getYieldAttempts() > 0);
+	}
+
+	public void testBatchWithoutYieldPointsFails() {
+		mProvider = TestProvider.create(getContext(),
+				new OperationCountYieldPolicy(100, 100, 10, 0), false);
+
+		try {
+			mProvider.applyBatch(inserts(25, false));
+			fail("batch without yield points should fail");
+		} catch (OperationApplicationException e) {
+			// expected
+		}
+
+		assertEquals(0, mProvider.count(TestProvider.ITEMS_URI));
+	}
+
+	public void testBatchWithYieldPointsDoesNotFail() throws Exception {
+		mProvider = TestProvider.create(getContext(),
+				new OperationCountYieldPolicy(5, 100, 10, 0), false);
+
+		// yield attempts without contention do not commit, but every yield
+		// allowed operation is a yield point
+		mProvider.applyBatch(inserts(25, true));
+
+		assertEquals(25, mProvider.count(TestProvider.ITEMS_URI));
+	}
+
+	public void testAutoChunkingCommitsBigBatch() throws Exception {
+		mProvider = TestProvider.create(getContext(),
+				new OperationCountYieldPolicy(100, 100, 10, 0), true);
+
+		mProvider.applyBatch(inserts(25, false));
+
+		assertEquals(25, mProvider.count(TestProvider.ITEMS_URI));
+		assertEquals(2, mProvider.getWriteProfiler().getChunkCommits());
+	}
+
+	public void testAutoChunkingWithDefaultPolicy() throws Exception {
+		mProvider = TestProvider.create(getContext(),
+				new OperationCountYieldPolicy(), true);
+
+		// forced yield attempts after 400 operations find no contention, so
+		// transaction is committed every 500 operations
+		mProvider.applyBatch(inserts(1200, false));
+
+		assertEquals(1200, mProvider.count(TestProvider.ITEMS_URI));
+		assertEquals(2, mProvider.getWriteProfiler().getChunkCommits());
+	}
+
+	public void testNestedBatchIsNotLimited() throws Exception {
+		mProvider = TestProvider.create(getContext(),
+				new OperationCountYieldPolicy(), false);
+
+		SyncSession session = mProvider.beginSyncSession();
+		try {
+			mProvider.applyBatch(inserts(600, false));
+			session.setSuccessful();
+		} finally {
+			session.end();
+		}
+
+		assertEquals(600, mProvider.count(TestProvider.ITEMS_URI));
+	}
+}
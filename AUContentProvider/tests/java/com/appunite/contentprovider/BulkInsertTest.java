@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.ArrayList;
+
+import com.appunite.contentprovider.ContractDesc.FieldType;
+import com.appunite.contentprovider.ContractFullDesc.SelectionVars;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+
+public class BulkInsertTest extends AndroidTestCase {
+
+	// yield attempt before every row, without waiting
+	private static final YieldPolicy ALWAYS_YIELD = new OperationCountYieldPolicy(
+			0, 0, 500, 0);
+
+	private static final String EVENTS = "events";
+	private static final Uri EVENTS_URI = Uri.parse("content://"
+			+ TestProvider.AUTHORITY + "/" + EVENTS);
+	private static final String EVENT_ID = DataHelper.field(EVENTS,
+			BaseColumns._ID);
+	private static final String EVENT_ITEM_GUID = DataHelper.field(EVENTS,
+			"item_guid");
+
+	/**
+	 * Every inserted event inserts item with its guid by bulkInsert
+	 */
+	private static final OnAfterInsertTrigger INSERT_ITEM = new OnAfterInsertTrigger() {
+		@Override
+		public void onAfterInsert(QueryInterface queryInterface, Uri uri,
+				SelectionVars selectionVars, long id, ContentValues newValues) {
+			ContentValues values = new ContentValues();
+			values.put(TestProvider.ITEM_GUID,
+					newValues.getAsString(EVENT_ITEM_GUID));
+			((BaseContentProvider) queryInterface).bulkInsert(
+					TestProvider.ITEMS_URI, new ContentValues[] { values });
+		}
+	};
+
+	private static final ContractFullDesc EVENTS_FULL_DESC = new ContractFullDesc.Builder(
+			TestProvider.AUTHORITY)
+			.addTable(TestProvider.itemsBuilder().build())
+			.addTable(
+					new ContractDesc.Builder(EVENTS, EVENT_ID, DataHelper
+							.contentType(TestProvider.AUTHORITY, EVENTS),
+							DataHelper.contentItemType(TestProvider.AUTHORITY,
+									EVENTS))
+							.addTableField(EVENT_ITEM_GUID, FieldType.TEXT)
+							.addOnAfterInsertTrigger(INSERT_ITEM).build())
+			.build();
+
+	private static class EventsProvider extends TestProvider {
+
+		EventsProvider() {
+			super(new OperationCountYieldPolicy(), false);
+		}
+
+		@Override
+		protected ContractFullDesc getFullDesc() {
+			return EVENTS_FULL_DESC;
+		}
+	}
+
+	private TestProvider mProvider;
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestProvider.deleteDatabase(getContext());
+		super.tearDown();
+	}
+
+	private static ContentValues[] values(int count) {
+		ContentValues[] valuesArray = new ContentValues[count];
+		for (int i = 0; i < count; ++i) {
+			ContentValues values = new ContentValues();
+			values.put(TestProvider.ITEM_NAME, "item " + i);
+			values.put(TestProvider.ITEM_POSITION, i);
+			valuesArray[i] = values;
+		}
+		return valuesArray;
+	}
+
+	public void testBulkInsertDoesNotYieldTransactionOfCaller() {
+		mProvider = TestProvider.create(getContext(), ALWAYS_YIELD, false);
+
+		SyncSession session = mProvider.beginSyncSession();
+		try {
+			// yield would throw IllegalStateException in nested transaction
+			mProvider.bulkInsert(TestProvider.ITEMS_URI, values(10));
+			session.setSuccessful();
+		} finally {
+			session.end();
+		}
+
+		assertEquals(10, mProvider.count(TestProvider.ITEMS_URI));
+		assertEquals(0, mProvider.getWriteProfiler().getYieldAttempts());
+		// every inserted row is notified after session commits
+		assertEquals(10, mProvider.getNotificationCount());
+	}
+
+	public void testNestedBulkInsertUpdatesGuidPrefetchOfBatch()
+			throws Exception {
+		mProvider = TestProvider.attach(getContext(), new EventsProvider());
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		operations.add(ContentProviderOperation.newInsert(EVENTS_URI)
+				.withValue(EVENT_ITEM_GUID, "guid").build());
+		// batch prefetched "guid" as absent, but trigger inserted it already
+		operations.add(ContentProviderOperation
+				.newInsert(TestProvider.ITEMS_URI)
+				.withValue(TestProvider.ITEM_GUID, "guid")
+				.withValue(TestProvider.ITEM_NAME, "name").build());
+
+		mProvider.applyBatch(operations);
+
+		Cursor cursor = mProvider.query(TestProvider.ITEMS_URI,
+				new String[] { TestProvider.ITEM_NAME }, null, null, null);
+		try {
+			assertEquals(1, cursor.getCount());
+			assertTrue(cursor.moveToFirst());
+			assertEquals("name", cursor.getString(0));
+		} finally {
+			cursor.close();
+		}
+	}
+}
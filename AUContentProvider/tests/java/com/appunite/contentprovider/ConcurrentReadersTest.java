@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Stress benchmark of binder threads: readers query while writers apply
+ * batches and bulk inserts. Throughput is logged under {@link #TAG}.
+ */
+public class ConcurrentReadersTest extends AndroidTestCase {
+
+	private static final String TAG = "ConcurrentReadersTest";
+	private static final int READERS = 4;
+	private static final int WRITES = 20;
+	private static final int ROWS_PER_WRITE = 50;
+
+	private final List<Throwable> mErrors = Collections
+			.synchronizedList(new ArrayList<Throwable>());
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestProvider.deleteDatabase(getContext());
+		super.tearDown();
+	}
+
+	private abstract class Worker extends Thread {
+		private final CountDownLatch mStart;
+		private final CountDownLatch mDone;
+
+		Worker(CountDownLatch start, CountDownLatch done) {
+			mStart = start;
+			mDone = done;
+		}
+
+		@Override
+		public void run() {
+			try {
+				mStart.await();
+				work();
+			} catch (Throwable e) {
+				mErrors.add(e);
+			} finally {
+				mDone.countDown();
+			}
+		}
+
+		abstract void work() throws Exception;
+	}
+
+	private void assertNoErrors() {
+		if (!mErrors.isEmpty()) {
+			Throwable error = mErrors.get(0);
+			Log.e(TAG, "worker failed", error);
+			fail(mErrors.size() + " workers failed, first: " + error);
+		}
+	}
+
+	public void testReadersDuringBatchesAndBulkInserts() throws Exception {
+		final TestProvider provider = TestProvider.create(getContext(),
+				new ContentionYieldPolicy(), false);
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		final AtomicLong queries = new AtomicLong();
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch writersDone = new CountDownLatch(2);
+		CountDownLatch readersDone = new CountDownLatch(READERS);
+
+		new Worker(start, writersDone) {
+			@Override
+			void work() throws Exception {
+				for (int write = 0; write < WRITES; ++write) {
+					ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+					for (int row = 0; row < ROWS_PER_WRITE; ++row) {
+						operations.add(ContentProviderOperation
+								.newInsert(TestProvider.ITEMS_URI)
+								.withValue(TestProvider.ITEM_GUID,
+										"batch" + write + "_" + row)
+								.withValue(TestProvider.ITEM_POSITION, row)
+								.withYieldAllowed(true).build());
+					}
+					provider.applyBatch(operations);
+				}
+			}
+		}.start();
+		new Worker(start, writersDone) {
+			@Override
+			void work() throws Exception {
+				for (int write = 0; write < WRITES; ++write) {
+					ContentValues[] valuesArray = new ContentValues[ROWS_PER_WRITE];
+					for (int row = 0; row < ROWS_PER_WRITE; ++row) {
+						ContentValues values = new ContentValues();
+						values.put(TestProvider.ITEM_NAME, "bulk " + write);
+						values.put(TestProvider.ITEM_POSITION, row);
+						valuesArray[row] = values;
+					}
+					provider.bulkInsert(TestProvider.ITEMS_URI, valuesArray);
+				}
+			}
+		}.start();
+		for (int i = 0; i < READERS; ++i) {
+			new Worker(start, readersDone) {
+				@Override
+				void work() throws Exception {
+					while (writing.get()) {
+						Cursor cursor = provider.query(TestProvider.ITEMS_URI,
+								new String[] { TestProvider.ITEM_ID,
+										TestProvider.ITEM_POSITION },
+								TestProvider.ITEM_POSITION + " < ?",
+								new String[] { "10" },
+								TestProvider.ITEM_POSITION);
+						try {
+							// readers see only committed rows
+							int count = cursor.getCount();
+							assertTrue(count >= 0);
+						} finally {
+							cursor.close();
+						}
+						queries.incrementAndGet();
+					}
+				}
+			}.start();
+		}
+
+		long startMillis = SystemClock.uptimeMillis();
+		start.countDown();
+		writersDone.await();
+		long writeMillis = SystemClock.uptimeMillis() - startMillis;
+		writing.set(false);
+		readersDone.await();
+		assertNoErrors();
+
+		assertEquals(2 * WRITES * ROWS_PER_WRITE,
+				provider.count(TestProvider.ITEMS_URI));
+		Log.i(TAG, String.format(
+				"%d rows written in %d ms, %d concurrent queries, %s",
+				2 * WRITES * ROWS_PER_WRITE, writeMillis, queries.get(),
+				provider.getWriteProfiler().getTransactionHold()));
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.appunite.contentprovider.ContractFullDesc.SelectionVars;
+
+import android.content.ContentUris;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Stress benchmark of binder threads: uris are resolved concurrently against
+ * one frozen contract without locking. Throughput is logged under
+ * {@link #TAG}.
+ */
+public class ContractFullDescConcurrencyTest extends AndroidTestCase {
+
+	private static final String TAG = "ContractFullDescConcurrencyTest";
+	private static final int RESOLVERS = 8;
+	private static final int RESOLVES_PER_THREAD = 20000;
+
+	private final List<Throwable> mErrors = Collections
+			.synchronizedList(new ArrayList<Throwable>());
+
+	private abstract class Worker extends Thread {
+		private final CountDownLatch mStart;
+		private final CountDownLatch mDone;
+
+		Worker(CountDownLatch start, CountDownLatch done) {
+			mStart = start;
+			mDone = done;
+		}
+
+		@Override
+		public void run() {
+			try {
+				mStart.await();
+				work();
+			} catch (Throwable e) {
+				mErrors.add(e);
+			} finally {
+				mDone.countDown();
+			}
+		}
+
+		abstract void work() throws Exception;
+	}
+
+	private void assertNoErrors() {
+		if (!mErrors.isEmpty()) {
+			Throwable error = mErrors.get(0);
+			Log.e(TAG, "worker failed", error);
+			fail(mErrors.size() + " workers failed, first: " + error);
+		}
+	}
+
+	public void testConcurrentUriResolution() throws Exception {
+		final ContractFullDesc fullDesc = TestProvider.FULL_DESC;
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(RESOLVERS);
+		for (int i = 0; i < RESOLVERS; ++i) {
+			final long id = i + 1;
+			new Worker(start, done) {
+				@Override
+				void work() throws Exception {
+					Uri itemUri = ContentUris.withAppendedId(
+							TestProvider.ITEMS_URI, id);
+					String expectedArg = Long.toString(id);
+					for (int j = 0; j < RESOLVES_PER_THREAD; ++j) {
+						SelectionVars item = fullDesc
+								.getSelectionVarsFromUri(itemUri);
+						assertEquals(TestProvider.ITEMS, item.getTable());
+						// other threads must not change selection of this one
+						assertTrue(item.getSelectionArgs().contains(
+								expectedArg));
+						assertEquals(1, item.getSelectionArgs().size());
+
+						SelectionVars items = fullDesc
+								.getSelectionVarsFromUri(TestProvider.ITEMS_URI);
+						assertEquals(TestProvider.ITEMS, items.getTable());
+						assertNotNull(fullDesc
+								.getProjection(TestProvider.ITEMS));
+					}
+				}
+			}.start();
+		}
+
+		long startMillis = SystemClock.uptimeMillis();
+		start.countDown();
+		done.await();
+		long millis = SystemClock.uptimeMillis() - startMillis;
+		assertNoErrors();
+		Log.i(TAG, String.format("%d uris resolved by %d threads in %d ms",
+				2 * RESOLVERS * RESOLVES_PER_THREAD, RESOLVERS, millis));
+	}
+}
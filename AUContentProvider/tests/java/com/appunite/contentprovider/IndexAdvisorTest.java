@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.List;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.appunite.contentprovider.IndexAdvisor.Advice;
+
+public class IndexAdvisorTest extends AndroidTestCase {
+
+	private static class AdvisedProvider extends TestProvider {
+		AdvisedProvider() {
+			super(new OperationCountYieldPolicy(), false);
+		}
+
+		@Override
+		protected boolean isIndexAdvisorEnabled() {
+			return true;
+		}
+	}
+
+	private TestProvider mProvider;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mProvider = TestProvider.attach(getContext(), new AdvisedProvider());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestProvider.deleteDatabase(getContext());
+		super.tearDown();
+	}
+
+	private List<Advice> query(String selection, String[] selectionArgs,
+			String sortOrder) throws InterruptedException {
+		Cursor cursor = mProvider.query(TestProvider.ITEMS_URI,
+				new String[] { TestProvider.ITEM_ID }, selection,
+				selectionArgs, sortOrder);
+		cursor.close();
+		mProvider.getIndexAdvisor().awaitExplained();
+		return mProvider.getIndexAdvisor().getAdvices();
+	}
+
+	public void testListingOfWholeTableIsNotReported()
+			throws InterruptedException {
+		assertTrue(query(null, null, null).isEmpty());
+		assertEquals(1, mProvider.getIndexAdvisor().getShapesCount());
+	}
+
+	public void testIndexedSelectionIsNotReported()
+			throws InterruptedException {
+		assertTrue(query(TestProvider.ITEM_POSITION + " = ?",
+				new String[] { "1" }, null).isEmpty());
+	}
+
+	public void testScanOfSelectionIsReported() throws InterruptedException {
+		List<Advice> advices = query(TestProvider.ITEM_NAME + " = ?",
+				new String[] { "a" }, null);
+		assertEquals(1, advices.size());
+		assertEquals(1, advices.get(0).getSuggestedIndexes().size());
+		assertTrue(advices.get(0).getSuggestedIndexes().get(0)
+				.contains(TestProvider.ITEM_NAME));
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+public class NotificationTest extends AndroidTestCase {
+
+	private TestProvider mProvider;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mProvider = TestProvider.create(getContext(),
+				new OperationCountYieldPolicy(), false);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestProvider.deleteDatabase(getContext());
+		super.tearDown();
+	}
+
+	private static ArrayList<ContentProviderOperation> inserts(int count) {
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		for (int i = 0; i < count; ++i) {
+			operations.add(ContentProviderOperation
+					.newInsert(TestProvider.ITEMS_URI)
+					.withValue(TestProvider.ITEM_GUID, "guid" + i)
+					.withValue(TestProvider.ITEM_POSITION, i).build());
+		}
+		return operations;
+	}
+
+	private static ContentValues[] values(int count) {
+		ContentValues[] valuesArray = new ContentValues[count];
+		for (int i = 0; i < count; ++i) {
+			ContentValues values = new ContentValues();
+			values.put(TestProvider.ITEM_POSITION, i);
+			valuesArray[i] = values;
+		}
+		return valuesArray;
+	}
+
+	private static class LatchObserver extends ContentObserver {
+		final CountDownLatch mLatch = new CountDownLatch(1);
+
+		LatchObserver() {
+			// called on binder thread, test thread has no looper
+			super(null);
+		}
+
+		@Override
+		public void onChange(boolean selfChange) {
+			mLatch.countDown();
+		}
+	}
+
+	public void testApplyBatchSendsOneNotificationPerTable() throws Exception {
+		mProvider.applyBatch(inserts(100));
+
+		assertEquals(100, mProvider.count(TestProvider.ITEMS_URI));
+		assertEquals(1, mProvider.getNotificationCount());
+	}
+
+	public void testBulkInsertSendsOneNotification() {
+		assertEquals(50, mProvider.bulkInsert(TestProvider.ITEMS_URI,
+				values(50)));
+
+		assertEquals(50, mProvider.count(TestProvider.ITEMS_URI));
+		assertEquals(1, mProvider.getNotificationCount());
+	}
+
+	public void testRolledBackBatchSendsNoNotifications() {
+		ArrayList<ContentProviderOperation> operations = inserts(10);
+		operations.add(ContentProviderOperation
+				.newUpdate(TestProvider.ITEMS_URI)
+				.withValue("no_such_column", 1).build());
+
+		try {
+			mProvider.applyBatch(operations);
+			fail("update of unknown column should fail");
+		} catch (Exception e) {
+			// expected
+		}
+
+		assertEquals(0, mProvider.count(TestProvider.ITEMS_URI));
+		assertEquals(0, mProvider.getNotificationCount());
+	}
+
+	public void testFewInsertsNotifyRows() throws Exception {
+		LatchObserver observer = new LatchObserver();
+		Uri firstRowUri = ContentUris.withAppendedId(TestProvider.ITEMS_URI,
+				1);
+		getContext().getContentResolver().registerContentObserver(
+				firstRowUri, false, observer);
+		try {
+			mProvider.applyBatch(inserts(3));
+
+			assertEquals(3, mProvider.getNotificationCount());
+			assertTrue("row observer was not notified",
+					observer.mLatch.await(5, TimeUnit.SECONDS));
+		} finally {
+			getContext().getContentResolver().unregisterContentObserver(
+					observer);
+		}
+	}
+
+	public void testTableChangeReplacesRowNotifications() throws Exception {
+		ArrayList<ContentProviderOperation> operations = inserts(2);
+		operations.add(ContentProviderOperation
+				.newUpdate(TestProvider.ITEMS_URI)
+				.withValue(TestProvider.ITEM_NAME, "name").build());
+
+		mProvider.applyBatch(operations);
+
+		// rows changed by update are not known, table uri notifies all rows
+		assertEquals(1, mProvider.getNotificationCount());
+	}
+
+	public void testUpdateNotifiesTable() {
+		mProvider.bulkInsert(TestProvider.ITEMS_URI, values(3));
+		mProvider.getMetrics().reset();
+
+		ContentValues values = new ContentValues();
+		values.put(TestProvider.ITEM_NAME, "name");
+		mProvider.update(TestProvider.ITEMS_URI, values, null, null);
+
+		assertEquals(1, mProvider.getNotificationCount());
+	}
+}
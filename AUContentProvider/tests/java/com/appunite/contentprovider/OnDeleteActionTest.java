@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.appunite.contentprovider.ContractDesc.FieldType;
+import com.appunite.contentprovider.ContractFullDesc.OnDeleteAction;
+import com.appunite.contentprovider.ContractFullDesc.SelectionVars;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+
+public class OnDeleteActionTest extends AndroidTestCase {
+
+	private static final String GROUPS = "groups";
+	private static final Uri GROUPS_URI = Uri.parse("content://"
+			+ TestProvider.AUTHORITY + "/" + GROUPS);
+	private static final String GROUP_ID = DataHelper.field(GROUPS,
+			BaseColumns._ID);
+	private static final String ITEM_GROUP_ID = DataHelper.field(
+			TestProvider.ITEMS, "group_id");
+
+	private static final AtomicInteger sItemUpdates = new AtomicInteger();
+
+	private static final OnUpdateTrigger COUNT_UPDATES = new OnUpdateTrigger() {
+		@Override
+		public void onUpdate(QueryInterface queryInterface, Uri uri,
+				SelectionVars selectionVars, ContentValues values,
+				String selection, String[] selectionArgs) {
+			sItemUpdates.incrementAndGet();
+		}
+	};
+
+	private static class GroupsProvider extends TestProvider {
+
+		private final ContractFullDesc mFullDesc;
+
+		GroupsProvider(OnDeleteAction onDelete) {
+			super(new OperationCountYieldPolicy(), false);
+			ContractDesc groups = new ContractDesc.Builder(GROUPS, GROUP_ID,
+					DataHelper.contentType(AUTHORITY, GROUPS),
+					DataHelper.contentItemType(AUTHORITY, GROUPS)).build();
+			ContractDesc items = TestProvider.itemsBuilder()
+					.addTableField(ITEM_GROUP_ID, FieldType.INTEGER)
+					.addOnUpdateTrigger(COUNT_UPDATES).build();
+			mFullDesc = new ContractFullDesc.Builder(AUTHORITY)
+					.addTable(groups).addTable(items)
+					.addConnection1n(groups, GROUP_ID, items, ITEM_GROUP_ID,
+							onDelete).build();
+		}
+
+		@Override
+		protected ContractFullDesc getFullDesc() {
+			return mFullDesc;
+		}
+	}
+
+	private TestProvider mProvider;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		sItemUpdates.set(0);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestProvider.deleteDatabase(getContext());
+		super.tearDown();
+	}
+
+	private long insertGroupWithItems(int items) {
+		long groupId = ContentUris.parseId(mProvider.insert(GROUPS_URI,
+				new ContentValues()));
+		for (int i = 0; i < items; ++i) {
+			ContentValues values = new ContentValues();
+			values.put(ITEM_GROUP_ID, groupId);
+			mProvider.insert(TestProvider.ITEMS_URI, values);
+		}
+		return groupId;
+	}
+
+	public void testSetNullRunsUpdateTriggersOfConnectedTable() {
+		mProvider = TestProvider.attach(getContext(), new GroupsProvider(
+				OnDeleteAction.SET_NULL));
+		long groupId = insertGroupWithItems(2);
+
+		mProvider.delete(ContentUris.withAppendedId(GROUPS_URI, groupId),
+				null, null);
+
+		// one set based update
+		assertEquals(1, sItemUpdates.get());
+		Cursor cursor = mProvider.query(TestProvider.ITEMS_URI,
+				new String[] { ITEM_GROUP_ID }, null, null, null);
+		try {
+			assertEquals(2, cursor.getCount());
+			while (cursor.moveToNext()) {
+				assertTrue(cursor.isNull(0));
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public void testCascadeDeletesConnectedRows() {
+		mProvider = TestProvider.attach(getContext(), new GroupsProvider(
+				OnDeleteAction.CASCADE));
+		long groupId = insertGroupWithItems(2);
+		insertGroupWithItems(1);
+
+		mProvider.delete(ContentUris.withAppendedId(GROUPS_URI, groupId),
+				null, null);
+
+		assertEquals(1, mProvider.count(TestProvider.ITEMS_URI));
+	}
+}
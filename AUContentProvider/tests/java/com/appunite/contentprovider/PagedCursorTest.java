@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+public class PagedCursorTest extends AndroidTestCase {
+
+	private static final int PAGE_SIZE = 5;
+
+	private static class PagedProvider extends TestProvider {
+		PagedCursor.Options mOptions;
+
+		PagedProvider() {
+			super(new OperationCountYieldPolicy(), false);
+		}
+
+		@Override
+		protected PagedCursor.Options getPagedCursorOptions(Uri uri) {
+			return mOptions;
+		}
+	}
+
+	private PagedProvider mProvider;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mProvider = TestProvider.attach(getContext(), new PagedProvider());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestProvider.deleteDatabase(getContext());
+		super.tearDown();
+	}
+
+	private void insertRows(int rows) {
+		ContentValues[] valuesArray = new ContentValues[rows];
+		for (int i = 0; i < rows; ++i) {
+			ContentValues values = new ContentValues();
+			values.put(TestProvider.ITEM_POSITION, i);
+			valuesArray[i] = values;
+		}
+		mProvider.bulkInsert(TestProvider.ITEMS_URI, valuesArray);
+	}
+
+	private Cursor createCursor(PagedCursor.CountMode countMode) {
+		return createCursor(new PagedCursor.Options().setPageSize(PAGE_SIZE)
+				.setPrefetchPages(0).setCountMode(countMode));
+	}
+
+	private Cursor createCursor(PagedCursor.Options options) {
+		mProvider.mOptions = options;
+		Cursor cursor = mProvider.query(TestProvider.ITEMS_URI,
+				new String[] { TestProvider.ITEM_POSITION }, null, null,
+				TestProvider.ITEM_POSITION);
+		assertTrue(cursor instanceof PagedCursor);
+		return cursor;
+	}
+
+	private static void assertIteratesRows(Cursor cursor, int rows) {
+		int read = 0;
+		for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+			assertEquals(read, cursor.getInt(0));
+			++read;
+			assertTrue("cursor returned too many rows", read <= rows);
+		}
+		assertEquals(rows, read);
+		assertEquals(rows, cursor.getCount());
+	}
+
+	public void testEstimatedCountWithRowsMultipleOfPageSize() {
+		insertRows(3 * PAGE_SIZE);
+		Cursor cursor = createCursor(PagedCursor.CountMode.ESTIMATED);
+		try {
+			assertIteratesRows(cursor, 3 * PAGE_SIZE);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public void testEstimatedCountNeverBiggerThanRows() {
+		insertRows(PAGE_SIZE + 2);
+		Cursor cursor = createCursor(PagedCursor.CountMode.ESTIMATED);
+		try {
+			assertTrue(cursor.getCount() <= PAGE_SIZE + 2);
+			assertIteratesRows(cursor, PAGE_SIZE + 2);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public void testEstimatedCountWithPageSizeRows() {
+		insertRows(PAGE_SIZE);
+		Cursor cursor = createCursor(PagedCursor.CountMode.ESTIMATED);
+		try {
+			assertEquals(PAGE_SIZE, cursor.getCount());
+			assertIteratesRows(cursor, PAGE_SIZE);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public void testEmpty() {
+		Cursor cursor = createCursor(PagedCursor.CountMode.ESTIMATED);
+		try {
+			assertEquals(0, cursor.getCount());
+			assertFalse(cursor.moveToFirst());
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public void testExactCount() {
+		insertRows(3 * PAGE_SIZE);
+		Cursor cursor = createCursor(PagedCursor.CountMode.EXACT);
+		try {
+			assertEquals(3 * PAGE_SIZE, cursor.getCount());
+			assertIteratesRows(cursor, 3 * PAGE_SIZE);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public void testKeyColumnsAreHidden() {
+		insertRows(1);
+		Cursor cursor = createCursor(PagedCursor.CountMode.EXACT);
+		try {
+			assertEquals(1, cursor.getColumnCount());
+			assertEquals(TestProvider.ITEM_POSITION, cursor.getColumnName(0));
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public void testJumpsToNotCachedPages() {
+		insertRows(4 * PAGE_SIZE);
+		Cursor cursor = createCursor(new PagedCursor.Options()
+				.setPageSize(PAGE_SIZE).setPrefetchPages(0)
+				.setMaxCachedPages(1));
+		try {
+			assertTrue(cursor.moveToPosition(3 * PAGE_SIZE + 1));
+			assertEquals(3 * PAGE_SIZE + 1, cursor.getInt(0));
+			assertTrue(cursor.moveToPosition(PAGE_SIZE + 2));
+			assertEquals(PAGE_SIZE + 2, cursor.getInt(0));
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public void testPagesRowsWithEqualSortKeys() {
+		ContentValues[] valuesArray = new ContentValues[3 * PAGE_SIZE];
+		for (int i = 0; i < valuesArray.length; ++i) {
+			valuesArray[i] = new ContentValues();
+			// NULL and equal keys continue on next pages by id
+			if (i >= PAGE_SIZE) {
+				valuesArray[i].put(TestProvider.ITEM_POSITION, 1);
+			}
+		}
+		mProvider.bulkInsert(TestProvider.ITEMS_URI, valuesArray);
+		Cursor cursor = createCursor(PagedCursor.CountMode.ESTIMATED);
+		try {
+			int read = 0;
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor
+					.moveToNext()) {
+				assertEquals(read >= PAGE_SIZE, !cursor.isNull(0));
+				++read;
+			}
+			assertEquals(3 * PAGE_SIZE, read);
+		} finally {
+			cursor.close();
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+public class PaginationTest extends AndroidTestCase {
+
+	private static final int ROWS = 10;
+
+	private TestProvider mProvider;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mProvider = TestProvider.create(getContext(),
+				new OperationCountYieldPolicy(), false);
+		ContentValues[] valuesArray = new ContentValues[ROWS];
+		for (int i = 0; i < ROWS; ++i) {
+			ContentValues values = new ContentValues();
+			values.put(TestProvider.ITEM_POSITION, i);
+			valuesArray[i] = values;
+		}
+		mProvider.bulkInsert(TestProvider.ITEMS_URI, valuesArray);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestProvider.deleteDatabase(getContext());
+		super.tearDown();
+	}
+
+	private int[] queryPositions(Uri uri) {
+		Cursor cursor = mProvider.query(uri,
+				new String[] { TestProvider.ITEM_POSITION }, null, null,
+				TestProvider.ITEM_POSITION);
+		try {
+			int[] positions = new int[cursor.getCount()];
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor
+					.moveToNext()) {
+				positions[cursor.getPosition()] = cursor.getInt(0);
+			}
+			return positions;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private static void assertPositions(int[] actual, int... expected) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; ++i) {
+			assertEquals(expected[i], actual[i]);
+		}
+	}
+
+	public void testLimit() {
+		assertPositions(
+				queryPositions(Pagination.limit(TestProvider.ITEMS_URI, 3)),
+				0, 1, 2);
+	}
+
+	public void testOffsetWithLimit() {
+		Uri uri = Pagination.offset(
+				Pagination.limit(TestProvider.ITEMS_URI, 3), 4);
+
+		assertPositions(queryPositions(uri), 4, 5, 6);
+	}
+
+	public void testOffsetWithoutLimit() {
+		Uri uri = Pagination.offset(TestProvider.ITEMS_URI, 7);
+
+		assertPositions(queryPositions(uri), 7, 8, 9);
+	}
+
+	public void testOffsetAfterLastRow() {
+		Uri uri = Pagination.offset(TestProvider.ITEMS_URI, ROWS);
+
+		assertPositions(queryPositions(uri));
+	}
+
+	public void testNegativeOffsetFails() {
+		try {
+			queryPositions(Pagination.offset(TestProvider.ITEMS_URI, -1));
+			fail("negative offset should fail");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testWrongLimitWithOffsetFails() {
+		Uri uri = TestProvider.ITEMS_URI.buildUpon()
+				.appendQueryParameter(Pagination.PARAM_LIMIT, "1; DROP")
+				.appendQueryParameter(Pagination.PARAM_OFFSET, "1").build();
+		try {
+			queryPositions(uri);
+			fail("wrong limit should fail");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testAfterAndBeforeKey() {
+		Cursor cursor = mProvider.query(TestProvider.ITEMS_URI, new String[] {
+				TestProvider.ITEM_ID, TestProvider.ITEM_POSITION }, null,
+				null, TestProvider.ITEM_POSITION);
+		long idOfPosition5;
+		try {
+			assertTrue(cursor.moveToPosition(5));
+			idOfPosition5 = cursor.getLong(0);
+		} finally {
+			cursor.close();
+		}
+
+		Uri after = Pagination.limit(
+				Pagination.after(TestProvider.ITEMS_URI, 5, idOfPosition5), 2);
+		assertPositions(queryPositions(after), 6, 7);
+
+		Uri before = Pagination.limit(
+				Pagination.before(TestProvider.ITEMS_URI, 5, idOfPosition5), 2);
+		assertPositions(queryPositions(before), 3, 4);
+
+		Uri allBefore = Pagination.before(TestProvider.ITEMS_URI, 5,
+				idOfPosition5);
+		assertPositions(queryPositions(allBefore), 0, 1, 2, 3, 4);
+	}
+
+	private Cursor queryPage(Uri uri) {
+		return mProvider.query(uri, new String[] { TestProvider.ITEM_ID,
+				TestProvider.ITEM_POSITION }, null, null,
+				TestProvider.ITEM_POSITION);
+	}
+
+	private static Long sortKey(Cursor cursor) {
+		return cursor.isNull(1) ? null : cursor.getLong(1);
+	}
+
+	private static void addPositions(List<Long> positions, int index,
+			Cursor cursor) {
+		for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+			positions.add(index++, sortKey(cursor));
+		}
+	}
+
+	private static void assertNullsFirst(List<Long> positions, int nulls) {
+		for (int i = 0; i < positions.size(); ++i) {
+			Long expected = i < nulls ? null : Long.valueOf(i - nulls);
+			assertEquals(expected, positions.get(i));
+		}
+	}
+
+	public void testPagesOverNullSortKeys() {
+		mProvider.bulkInsert(TestProvider.ITEMS_URI, new ContentValues[] {
+				new ContentValues(), new ContentValues() });
+
+		List<Long> forward = new ArrayList<Long>();
+		Uri uri = Pagination.limit(TestProvider.ITEMS_URI, 3);
+		while (true) {
+			Cursor cursor = queryPage(uri);
+			try {
+				addPositions(forward, forward.size(), cursor);
+				if (!cursor.moveToLast()) {
+					break;
+				}
+				uri = Pagination.limit(Pagination.after(
+						TestProvider.ITEMS_URI, sortKey(cursor),
+						cursor.getLong(0)), 3);
+			} finally {
+				cursor.close();
+			}
+		}
+		assertEquals(ROWS + 2, forward.size());
+		assertNullsFirst(forward, 2);
+
+		List<Long> backward = new ArrayList<Long>();
+		uri = Pagination.limit(TestProvider.ITEMS_URI, ROWS + 2);
+		Cursor last = queryPage(uri);
+		try {
+			assertTrue(last.moveToLast());
+			backward.add(sortKey(last));
+			uri = Pagination.limit(Pagination.before(TestProvider.ITEMS_URI,
+					sortKey(last), last.getLong(0)), 3);
+		} finally {
+			last.close();
+		}
+		while (true) {
+			Cursor cursor = queryPage(uri);
+			try {
+				addPositions(backward, 0, cursor);
+				if (!cursor.moveToFirst()) {
+					break;
+				}
+				uri = Pagination.limit(Pagination.before(
+						TestProvider.ITEMS_URI, sortKey(cursor),
+						cursor.getLong(0)), 3);
+			} finally {
+				cursor.close();
+			}
+		}
+		assertEquals(ROWS + 2, backward.size());
+		assertNullsFirst(backward, 2);
+	}
+
+	public void testSortKeyIsComparedAsNumber() {
+		ContentValues values = new ContentValues();
+		values.put(TestProvider.ITEM_POSITION, 10);
+		mProvider.insert(TestProvider.ITEMS_URI, values);
+
+		// as text "10" would be smaller than "9"
+		Uri uri = Pagination.after(TestProvider.ITEMS_URI, "9", Long.MAX_VALUE);
+		assertPositions(queryPositions(uri), 10);
+	}
+}
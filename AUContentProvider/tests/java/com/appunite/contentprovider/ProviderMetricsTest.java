@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+public class ProviderMetricsTest extends AndroidTestCase {
+
+	// indexes in arrays of ProviderMetrics.toBundle()
+	private static final int COUNT = 0;
+	private static final int ROWS = 3;
+
+	private TestProvider mProvider;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mProvider = TestProvider.create(getContext(),
+				new OperationCountYieldPolicy(), false);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestProvider.deleteDatabase(getContext());
+		super.tearDown();
+	}
+
+	private void insertItems(int count) {
+		ContentValues[] valuesArray = new ContentValues[count];
+		for (int i = 0; i < count; ++i) {
+			ContentValues values = new ContentValues();
+			values.put(TestProvider.ITEM_POSITION, i);
+			valuesArray[i] = values;
+		}
+		mProvider.bulkInsert(TestProvider.ITEMS_URI, valuesArray);
+	}
+
+	private Bundle getMetrics() {
+		Bundle bundle = mProvider.call(
+				BaseContentProvider.METHOD_GET_METRICS, null, null);
+		assertNotNull(bundle);
+		return bundle;
+	}
+
+	public void testRecordsOperationsPerRoute() {
+		insertItems(3);
+		ContentValues values = new ContentValues();
+		values.put(TestProvider.ITEM_POSITION, 3);
+		mProvider.insert(TestProvider.ITEMS_URI, values);
+
+		Bundle bundle = getMetrics();
+		long[] bulkInsert = bundle.getLongArray("items bulkInsert");
+		assertEquals(1, bulkInsert[COUNT]);
+		assertEquals(3, bulkInsert[ROWS]);
+		long[] insert = bundle.getLongArray("items insert");
+		assertEquals(1, insert[COUNT]);
+		assertEquals(1, insert[ROWS]);
+		assertNull(bundle.getLongArray("items update"));
+		assertNotNull(bundle.getString(BaseContentProvider.KEY_DUMP));
+	}
+
+	public void testQueryRowsAreCounted() {
+		insertItems(3);
+		Cursor cursor = mProvider.query(TestProvider.ITEMS_URI, null, null,
+				null, null);
+		assertEquals(3, cursor.getCount());
+		cursor.close();
+
+		Bundle bundle = getMetrics();
+		long[] query = bundle.getLongArray("items query");
+		assertEquals(1, query[COUNT]);
+		assertEquals(3, query[ROWS]);
+		boolean dumped = false;
+		for (String line : bundle.getString(BaseContentProvider.KEY_DUMP)
+				.split("\n")) {
+			if (line.contains("items query:")) {
+				assertTrue(line, line.contains("rows=3"));
+				dumped = true;
+			}
+		}
+		assertTrue(dumped);
+	}
+
+	public void testResetClearsMetrics() {
+		insertItems(3);
+
+		mProvider.call(BaseContentProvider.METHOD_RESET_METRICS, null, null);
+
+		Bundle bundle = getMetrics();
+		assertNull(bundle.getLongArray("items bulkInsert"));
+		assertEquals(0, bundle.getLong("notifications"));
+	}
+}
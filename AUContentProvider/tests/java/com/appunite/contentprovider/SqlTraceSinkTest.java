@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+public class SqlTraceSinkTest extends AndroidTestCase {
+
+	private TestProvider mProvider;
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestProvider.deleteDatabase(getContext());
+		super.tearDown();
+	}
+
+	public void testCallIsAllowedForOwnProcess() {
+		mProvider = TestProvider.create(getContext(),
+				new OperationCountYieldPolicy(), false);
+		mProvider.setSqlTraceSink(new RingBufferSqlTraceSink(10));
+
+		mProvider.count(TestProvider.ITEMS_URI);
+
+		Bundle bundle = mProvider.call(
+				BaseContentProvider.METHOD_GET_SQL_TRACE, null, null);
+		assertNotNull(bundle);
+		assertTrue(bundle.getString(BaseContentProvider.KEY_DUMP).contains(
+				TestProvider.ITEMS));
+		assertNotNull(mProvider.call(
+				BaseContentProvider.METHOD_GET_WRITE_PROFILE, null, null));
+	}
+
+	public void testOtherMethodsArePassedToSubclass() {
+		mProvider = TestProvider.attach(getContext(), new TestProvider(
+				new OperationCountYieldPolicy(), false) {
+			@Override
+			public Bundle call(String method, String arg, Bundle extras) {
+				Bundle bundle = super.call(method, arg, extras);
+				if ("echo".equals(method)) {
+					bundle = new Bundle();
+					bundle.putString("arg", arg);
+				}
+				return bundle;
+			}
+		});
+
+		Bundle bundle = mProvider.call("echo", "value", null);
+		assertNotNull(bundle);
+		assertEquals("value", bundle.getString("arg"));
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+public class SyncSessionTest extends AndroidTestCase {
+
+	private TestProvider mProvider;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mProvider = TestProvider.create(getContext(),
+				new OperationCountYieldPolicy(), false);
+		mProvider.bulkInsert(TestProvider.ITEMS_URI, new ContentValues[] {
+				item("a"), item("b"), item("c") });
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestProvider.deleteDatabase(getContext());
+		super.tearDown();
+	}
+
+	private static ContentValues item(String guid) {
+		ContentValues values = new ContentValues();
+		values.put(TestProvider.ITEM_GUID, guid);
+		return values;
+	}
+
+	private void assertGuids(String... expected) {
+		Cursor cursor = mProvider.query(TestProvider.ITEMS_URI,
+				new String[] { TestProvider.ITEM_GUID }, null, null,
+				TestProvider.ITEM_GUID);
+		try {
+			assertEquals(expected.length, cursor.getCount());
+			for (String guid : expected) {
+				assertTrue(cursor.moveToNext());
+				assertEquals(guid, cursor.getString(0));
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public void testSweepDeletesRowsNotUpserted() {
+		SyncSession session = mProvider.beginSyncSession();
+		SyncSession.Stats stats;
+		try {
+			session.upsert(TestProvider.ITEMS_URI, item("a"));
+			session.upsert(TestProvider.ITEMS_URI, item("d"));
+			assertEquals(2, session.sweep(TestProvider.ITEMS_URI));
+			stats = session.getStats(TestProvider.ITEMS_URI);
+			session.setSuccessful();
+		} finally {
+			session.end();
+		}
+
+		assertGuids("a", "d");
+		assertEquals(1, stats.getInsertedCount());
+		assertEquals(1, stats.getUpdatedCount());
+		assertEquals(2, stats.getDeletedCount());
+	}
+
+	public void testNestedSessionKeepsStateOfOuterSession() {
+		SyncSession session = mProvider.beginSyncSession();
+		try {
+			session.upsert(TestProvider.ITEMS_URI, item("a"));
+
+			SyncSession nested = mProvider.beginSyncSession();
+			try {
+				nested.upsert(TestProvider.ITEMS_URI, item("b"));
+				nested.setSuccessful();
+			} finally {
+				nested.end();
+			}
+
+			assertEquals(2, session.sweep(TestProvider.ITEMS_URI));
+			session.setSuccessful();
+		} finally {
+			session.end();
+		}
+
+		assertGuids("a");
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import com.appunite.contentprovider.ContractDesc.FieldType;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+/**
+ * Provider with one table of items. It is created directly by tests instead
+ * of manifest, so every test can configure it.
+ */
+public class TestProvider extends BaseContentProvider {
+
+	public static final String AUTHORITY = "com.appunite.contentprovider.test";
+	public static final String ITEMS = "items";
+	public static final Uri ITEMS_URI = Uri.parse("content://" + AUTHORITY
+			+ "/" + ITEMS);
+	public static final String ITEM_ID = DataHelper.field(ITEMS,
+			BaseColumns._ID);
+	public static final String ITEM_GUID = DataHelper.field(ITEMS, "guid");
+	public static final String ITEM_NAME = DataHelper.field(ITEMS, "name");
+	public static final String ITEM_POSITION = DataHelper.field(ITEMS,
+			"position");
+
+	private static final String DB_NAME = "aucontentprovider_test.db";
+	private static final int DB_VERSION = 1;
+
+	static final ContractDesc DESC_ITEMS = itemsBuilder().build();
+
+	static final ContractFullDesc FULL_DESC = new ContractFullDesc.Builder(
+			AUTHORITY).addTable(DESC_ITEMS).build();
+
+	/**
+	 * Items table, tests that need triggers or more tables build own
+	 * description and override {@link #getFullDesc()}
+	 */
+	static ContractDesc.Builder itemsBuilder() {
+		return new ContractDesc.Builder(ITEMS, ITEM_ID,
+				DataHelper.contentType(AUTHORITY, ITEMS),
+				DataHelper.contentItemType(AUTHORITY, ITEMS))
+				.setGuidField(ITEM_GUID)
+				.addTableField(ITEM_NAME, FieldType.TEXT)
+				.addTableField(ITEM_POSITION, FieldType.INTEGER)
+				.addIndex(ITEM_POSITION);
+	}
+
+	private static class Helper extends SQLiteOpenHelper {
+
+		private final ContractFullDesc mFullDesc;
+
+		Helper(Context context, ContractFullDesc fullDesc) {
+			super(context, DB_NAME, null, DB_VERSION);
+			mFullDesc = fullDesc;
+		}
+
+		@Override
+		public void onCreate(SQLiteDatabase db) {
+			mFullDesc.sqlCreateAll(db);
+		}
+
+		@Override
+		public void onUpgrade(SQLiteDatabase db, int oldVersion,
+				int newVersion) {
+			mFullDesc.sqlDropAll(db);
+			onCreate(db);
+		}
+	}
+
+	private final YieldPolicy mTestYieldPolicy;
+	private final boolean mAutoChunking;
+
+	public TestProvider(YieldPolicy yieldPolicy, boolean autoChunking) {
+		mTestYieldPolicy = yieldPolicy;
+		mAutoChunking = autoChunking;
+	}
+
+	/**
+	 * Create provider with empty database
+	 */
+	public static TestProvider create(Context context, YieldPolicy yieldPolicy,
+			boolean autoChunking) {
+		return attach(context, new TestProvider(yieldPolicy, autoChunking));
+	}
+
+	/**
+	 * Attach provider to context with empty database
+	 */
+	public static <T extends TestProvider> T attach(Context context, T provider) {
+		context.deleteDatabase(DB_NAME);
+		provider.attachInfo(context, null);
+		return provider;
+	}
+
+	public static void deleteDatabase(Context context) {
+		context.deleteDatabase(DB_NAME);
+	}
+
+	@Override
+	protected ContractFullDesc getFullDesc() {
+		return FULL_DESC;
+	}
+
+	@Override
+	protected SQLiteOpenHelper createSQLiteOpenHelper(Context context) {
+		return new Helper(context, getFullDesc());
+	}
+
+	@Override
+	protected YieldPolicy getYieldPolicy() {
+		return mTestYieldPolicy;
+	}
+
+	@Override
+	protected boolean isAutoChunkingEnabled() {
+		return mAutoChunking;
+	}
+
+	@Override
+	protected boolean isWriteAheadLoggingRequested() {
+		return true;
+	}
+
+	@Override
+	protected boolean isWriteProfilerEnabled() {
+		return true;
+	}
+
+	@Override
+	protected boolean isMetricsEnabled() {
+		return true;
+	}
+
+	public int count(Uri uri) {
+		Cursor cursor = query(uri, new String[] { ITEM_ID }, null, null, null);
+		try {
+			return cursor.getCount();
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public long getNotificationCount() {
+		return getMetrics().toBundle().getLong("notifications");
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.appunite.contentprovider;
+
+import java.util.List;
+
+import com.appunite.contentprovider.ContractDesc.FieldType;
+import com.appunite.contentprovider.ContractFullDesc.SelectionVars;
+import com.appunite.contentprovider.WriteProfiler.Timer;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+
+public class WriteProfilerTest extends AndroidTestCase {
+
+	private static final String EVENTS = "events";
+	private static final Uri EVENTS_URI = Uri.parse("content://"
+			+ TestProvider.AUTHORITY + "/" + EVENTS);
+	private static final String EVENT_ID = DataHelper.field(EVENTS,
+			BaseColumns._ID);
+	private static final String EVENT_NAME = DataHelper.field(EVENTS, "name");
+
+	private static final OnAfterInsertTrigger NOTHING = new OnAfterInsertTrigger() {
+		@Override
+		public void onAfterInsert(QueryInterface queryInterface, Uri uri,
+				SelectionVars selectionVars, long id, ContentValues values) {
+		}
+	};
+
+	// the same trigger instance in two tables
+	private static final ContractFullDesc SHARED_TRIGGER_FULL_DESC = new ContractFullDesc.Builder(
+			TestProvider.AUTHORITY)
+			.addTable(
+					TestProvider.itemsBuilder()
+							.addOnAfterInsertTrigger(NOTHING).build())
+			.addTable(
+					new ContractDesc.Builder(EVENTS, EVENT_ID, DataHelper
+							.contentType(TestProvider.AUTHORITY, EVENTS),
+							DataHelper.contentItemType(TestProvider.AUTHORITY,
+									EVENTS))
+							.addTableField(EVENT_NAME, FieldType.TEXT)
+							.addOnAfterInsertTrigger(NOTHING).build())
+			.build();
+
+	private static class SharedTriggerProvider extends TestProvider {
+
+		SharedTriggerProvider() {
+			super(new OperationCountYieldPolicy(), false);
+		}
+
+		@Override
+		protected ContractFullDesc getFullDesc() {
+			return SHARED_TRIGGER_FULL_DESC;
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestProvider.deleteDatabase(getContext());
+		super.tearDown();
+	}
+
+	public void testTriggerIsTimedPerTable() {
+		TestProvider provider = TestProvider.attach(getContext(),
+				new SharedTriggerProvider());
+		ContentValues item = new ContentValues();
+		item.put(TestProvider.ITEM_NAME, "item");
+		provider.insert(TestProvider.ITEMS_URI, item);
+		ContentValues event = new ContentValues();
+		event.put(EVENT_NAME, "event");
+		provider.insert(EVENTS_URI, event);
+		provider.insert(EVENTS_URI, event);
+
+		List<Timer> timers = provider.getWriteProfiler().getTriggers();
+		long itemsCount = 0;
+		long eventsCount = 0;
+		for (Timer timer : timers) {
+			if (timer.getName().startsWith(
+					"onAfterInsert " + TestProvider.ITEMS + " ")) {
+				itemsCount += timer.getCount();
+			} else if (timer.getName().startsWith(
+					"onAfterInsert " + EVENTS + " ")) {
+				eventsCount += timer.getCount();
+			}
+		}
+		assertEquals(1, itemsCount);
+		assertEquals(2, eventsCount);
+	}
+}
@@ -33,4 +33,9 @@ public class AppProvider extends BaseContentProvider {
 		return new DBHelper(context);
 	}
 
+	@Override
+	protected boolean isWriteAheadLoggingRequested() {
+		return true;
+	}
+
 }